@@ -0,0 +1,501 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.common.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.StopTagInputHandler;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.CodeStringAttribute;
+import com.pixelmed.dicom.DecimalStringAttribute;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.FileMetaInformation;
+import com.pixelmed.dicom.IntegerStringAttribute;
+import com.pixelmed.dicom.LongStringAttribute;
+import com.pixelmed.dicom.OtherByteAttribute;
+import com.pixelmed.dicom.OtherWordAttribute;
+import com.pixelmed.dicom.PersonNameAttribute;
+import com.pixelmed.dicom.SOPClass;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.TransferSyntax;
+import com.pixelmed.dicom.UIDGenerator;
+import com.pixelmed.dicom.UniqueIdentifierAttribute;
+import com.pixelmed.dicom.UnsignedShortAttribute;
+
+/**
+ * Generates the input data of the benchmarks: synthetic rasters, DICOM files, mask images and source attribute lists.
+ * <p>
+ * The images are a phantom (an elliptical body with a few round inserts, a gradient and some noise), so they compress
+ * and window like real data rather than like random numbers. Everything is derived from a fixed seed.
+ * </p>
+ */
+public final class BenchmarkData
+{
+	public static final long SEED = 20141017L;
+
+	private static final UIDGenerator uidGenerator = new UIDGenerator();
+
+	private BenchmarkData()
+	{
+	}
+
+	/**
+	 * Generate the phantom for one frame.
+	 * 
+	 * @param rows number of rows
+	 * @param columns number of columns
+	 * @param bitsStored bits stored, 8 to 16
+	 * @param signed true for signed values
+	 * @param frame frame number, moves the inserts from frame to frame
+	 * @param random noise source
+	 * @return values in row-major order, within the range of the stored bits
+	 */
+	public static int[] createPhantom(int rows, int columns, int bitsStored, boolean signed, int frame, Random random)
+	{
+		int range = 1 << bitsStored;
+		int minimum = signed ? -range / 2 : 0;
+		int maximum = minimum + range - 1;
+		int background = minimum + range / 16;
+		int tissue = minimum + range / 3;
+		int[] values = new int[rows * columns];
+		double shift = (frame % 32) / 64.0;
+		for (int y = 0; y < rows; y++) {
+			double dy = (y - rows / 2.0) / (rows / 2.0);
+			for (int x = 0; x < columns; x++) {
+				double dx = (x - columns / 2.0) / (columns / 2.0);
+				int value = background;
+				if (dx * dx / 0.8 + dy * dy / 0.6 < 1.0) {
+					value = tissue + (int)(range / 16.0 * dx);
+					double ix = dx - 0.3 + shift, iy = dy + 0.1;
+					if (ix * ix + iy * iy < 0.04)
+						value = minimum + (range * 3) / 4;
+					double jx = dx + 0.35, jy = dy - 0.2 + shift;
+					if (jx * jx + jy * jy < 0.02)
+						value = minimum + range / 5;
+				}
+				value += (int)(random.nextGaussian() * range / 256.0);
+				values[y * columns + x] = Math.max(minimum, Math.min(maximum, value));
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Create a raster holding the phantom, with the data buffer type DicomImageReader uses for these bits.
+	 * 
+	 * @param rows number of rows
+	 * @param columns number of columns
+	 * @param bitsStored bits stored, 8 to 16
+	 * @param signed true for signed values
+	 * @return raster
+	 */
+	public static Raster createRaster(int rows, int columns, int bitsStored, boolean signed)
+	{
+		int dataType = bitsStored <= 8 ? DataBuffer.TYPE_BYTE : (signed ? DataBuffer.TYPE_SHORT : DataBuffer.TYPE_USHORT);
+		WritableRaster raster = Raster.createWritableRaster(new PixelInterleavedSampleModel(dataType, columns, rows, 1,
+				columns, new int[] { 0 }), null);
+		int[] values = createPhantom(rows, columns, bitsStored, signed, 0, new Random(SEED));
+		if (dataType == DataBuffer.TYPE_SHORT) {
+			// Signed samples are stored sign extended, as read from PixelData
+			for (int i = 0; i < values.length; i++) {
+				values[i] = (short)values[i];
+			}
+		} else {
+			int mask = (1 << bitsStored) - 1;
+			for (int i = 0; i < values.length; i++) {
+				values[i] &= mask;
+			}
+		}
+		raster.setSamples(0, 0, columns, rows, 0, values);
+		return raster;
+	}
+
+	/**
+	 * Create the attributes of an image of a CT series.
+	 * 
+	 * @param studyUID study instance UID
+	 * @param seriesUID series instance UID
+	 * @param frameOfReferenceUID frame of reference UID
+	 * @param instanceNumber instance number, also giving the slice position
+	 * @param rows number of rows
+	 * @param columns number of columns
+	 * @param bitsStored bits stored, 8 to 16
+	 * @param signed true for signed values
+	 * @param frames number of frames, 1 for a single frame image
+	 * @return attributes without PixelData
+	 * @throws DicomException
+	 */
+	public static AttributeList createImageAttributes(String studyUID, String seriesUID, String frameOfReferenceUID,
+			int instanceNumber, int rows, int columns, int bitsStored, boolean signed, int frames) throws DicomException
+	{
+		AttributeList list = new AttributeList();
+		putString(list, new UniqueIdentifierAttribute(TagFromName.SOPClassUID), SOPClass.CTImageStorage);
+		putString(list, new UniqueIdentifierAttribute(TagFromName.SOPInstanceUID), uidGenerator.getAnotherNewUID());
+		putString(list, new UniqueIdentifierAttribute(TagFromName.StudyInstanceUID), studyUID);
+		putString(list, new UniqueIdentifierAttribute(TagFromName.SeriesInstanceUID), seriesUID);
+		putString(list, new UniqueIdentifierAttribute(TagFromName.FrameOfReferenceUID), frameOfReferenceUID);
+		putString(list, new PersonNameAttribute(TagFromName.PatientName), "Benchmark^Phantom");
+		putString(list, new LongStringAttribute(TagFromName.PatientID), "BENCH0001");
+		putString(list, new CodeStringAttribute(TagFromName.Modality), "CT");
+		putString(list, new IntegerStringAttribute(TagFromName.SeriesNumber), "1");
+		putString(list, new IntegerStringAttribute(TagFromName.InstanceNumber), Integer.toString(instanceNumber));
+		double position = instanceNumber * 1.25;
+		putString(list, new DecimalStringAttribute(TagFromName.ImagePositionPatient), "-160", "-160",
+				Double.toString(position));
+		putString(list, new DecimalStringAttribute(TagFromName.ImageOrientationPatient), "1", "0", "0", "0", "1", "0");
+		putString(list, new DecimalStringAttribute(TagFromName.SliceLocation), Double.toString(position));
+		putString(list, new DecimalStringAttribute(TagFromName.PixelSpacing), "0.625", "0.625");
+		putString(list, new DecimalStringAttribute(TagFromName.SliceThickness), "1.25");
+		putInt(list, new UnsignedShortAttribute(TagFromName.Rows), rows);
+		putInt(list, new UnsignedShortAttribute(TagFromName.Columns), columns);
+		putInt(list, new UnsignedShortAttribute(TagFromName.SamplesPerPixel), 1);
+		putString(list, new CodeStringAttribute(TagFromName.PhotometricInterpretation), "MONOCHROME2");
+		putInt(list, new UnsignedShortAttribute(TagFromName.BitsAllocated), bitsStored <= 8 ? 8 : 16);
+		putInt(list, new UnsignedShortAttribute(TagFromName.BitsStored), bitsStored);
+		putInt(list, new UnsignedShortAttribute(TagFromName.HighBit), bitsStored - 1);
+		putInt(list, new UnsignedShortAttribute(TagFromName.PixelRepresentation), signed ? 1 : 0);
+		putString(list, new DecimalStringAttribute(TagFromName.RescaleIntercept), signed ? "0" : "-1024");
+		putString(list, new DecimalStringAttribute(TagFromName.RescaleSlope), "1");
+		if (frames > 1)
+			putString(list, new IntegerStringAttribute(TagFromName.NumberOfFrames), Integer.toString(frames));
+		return list;
+	}
+
+	/**
+	 * Create the attributes of the images of a CT series, as read from the source images of a DSO.
+	 * 
+	 * @param slices number of images
+	 * @param rows number of rows
+	 * @param columns number of columns
+	 * @return attributes of each image, without PixelData
+	 * @throws DicomException
+	 */
+	public static AttributeList[] createSeriesAttributes(int slices, int rows, int columns) throws DicomException
+	{
+		String studyUID = uidGenerator.getAnotherNewUID();
+		String seriesUID = uidGenerator.getAnotherNewUID();
+		String frameOfReferenceUID = uidGenerator.getAnotherNewUID();
+		AttributeList[] series = new AttributeList[slices];
+		for (int i = 0; i < slices; i++) {
+			series[i] = createImageAttributes(studyUID, seriesUID, frameOfReferenceUID, i + 1, rows, columns, 12, false,
+					1);
+		}
+		return series;
+	}
+
+	/**
+	 * Write a multi-frame image.
+	 * 
+	 * @param file output file
+	 * @param frames number of frames
+	 * @param rows number of rows
+	 * @param columns number of columns
+	 * @param bitsStored bits stored, 8 to 16
+	 * @param signed true for signed values
+	 * @throws IOException
+	 * @throws DicomException
+	 */
+	public static void writeImage(File file, int frames, int rows, int columns, int bitsStored, boolean signed)
+			throws IOException, DicomException
+	{
+		AttributeList list = createImageAttributes(uidGenerator.getAnotherNewUID(), uidGenerator.getAnotherNewUID(),
+				uidGenerator.getAnotherNewUID(), 1, rows, columns, bitsStored, signed, frames);
+		Random random = new Random(SEED);
+		int frameSize = rows * columns;
+		if (bitsStored <= 8) {
+			byte[] pixels = new byte[frames * frameSize];
+			for (int frame = 0; frame < frames; frame++) {
+				int[] values = createPhantom(rows, columns, bitsStored, signed, frame, random);
+				for (int i = 0; i < frameSize; i++) {
+					pixels[frame * frameSize + i] = (byte)values[i];
+				}
+			}
+			Attribute pixelData = new OtherByteAttribute(TagFromName.PixelData);
+			pixelData.setValues(pixels);
+			list.put(pixelData);
+		} else {
+			short[] pixels = new short[frames * frameSize];
+			for (int frame = 0; frame < frames; frame++) {
+				int[] values = createPhantom(rows, columns, bitsStored, signed, frame, random);
+				for (int i = 0; i < frameSize; i++) {
+					pixels[frame * frameSize + i] = (short)values[i];
+				}
+			}
+			Attribute pixelData = new OtherWordAttribute(TagFromName.PixelData);
+			pixelData.setValues(pixels);
+			list.put(pixelData);
+		}
+		FileMetaInformation.addFileMetaInformation(list, TransferSyntax.ExplicitVRLittleEndian, "EPADBENCH");
+		list.write(file, TransferSyntax.ExplicitVRLittleEndian, true, true);
+	}
+
+	/**
+	 * Write a single frame CT series.
+	 * 
+	 * @param directory output directory
+	 * @param slices number of images
+	 * @param rows number of rows
+	 * @param columns number of columns
+	 * @return paths of the files, in slice order
+	 * @throws IOException
+	 * @throws DicomException
+	 */
+	public static List<String> writeSeries(File directory, int slices, int rows, int columns) throws IOException,
+			DicomException
+	{
+		AttributeList[] series = createSeriesAttributes(slices, rows, columns);
+		Random random = new Random(SEED);
+		List<String> paths = new ArrayList<String>();
+		for (int i = 0; i < slices; i++) {
+			int[] values = createPhantom(rows, columns, 12, false, i, random);
+			short[] pixels = new short[values.length];
+			for (int j = 0; j < values.length; j++) {
+				pixels[j] = (short)values[j];
+			}
+			Attribute pixelData = new OtherWordAttribute(TagFromName.PixelData);
+			pixelData.setValues(pixels);
+			series[i].put(pixelData);
+			FileMetaInformation.addFileMetaInformation(series[i], TransferSyntax.ExplicitVRLittleEndian, "EPADBENCH");
+			File file = new File(directory, String.format("image%04d.dcm", i + 1));
+			series[i].write(file, TransferSyntax.ExplicitVRLittleEndian, true, true);
+			paths.add(file.getAbsolutePath());
+		}
+		return paths;
+	}
+
+	/**
+	 * Create one grayscale mask per frame, as written by the annotation tools. The first and last tenth of the frames
+	 * are empty.
+	 * 
+	 * @param frames number of frames
+	 * @param rows number of rows
+	 * @param columns number of columns
+	 * @return one byte per pixel, 0 or 255, frame after frame
+	 */
+	public static byte[] createMasks(int frames, int rows, int columns)
+	{
+		byte[] masks = new byte[frames * rows * columns];
+		int empty = frames / 10;
+		for (int frame = empty; frame < frames - empty; frame++) {
+			double radius = 0.15 + 0.1 * Math.sin(Math.PI * frame / frames);
+			int offset = frame * rows * columns;
+			for (int y = 0; y < rows; y++) {
+				double dy = (y - rows / 2.0) / rows;
+				for (int x = 0; x < columns; x++) {
+					double dx = (x - columns / 2.0) / columns;
+					if (dx * dx + dy * dy < radius * radius)
+						masks[offset + y * columns + x] = (byte)255;
+				}
+			}
+		}
+		return masks;
+	}
+
+	/**
+	 * Pack masks to one bit per pixel, least significant bit first, as placed in the PixelData of a binary DSO.
+	 * 
+	 * @param masks masks from {@link #createMasks(int, int, int)}
+	 * @return packed masks
+	 */
+	public static byte[] packMasks(byte[] masks)
+	{
+		byte[] packed = new byte[(masks.length + 7) / 8];
+		for (int i = 0; i < masks.length; i++) {
+			if (masks[i] != 0)
+				packed[i / 8] |= 1 << (i % 8);
+		}
+		return packed;
+	}
+
+	/**
+	 * Write the masks as grayscale PNG files, one per frame.
+	 * 
+	 * @param directory output directory
+	 * @param frames number of frames
+	 * @param rows number of rows
+	 * @param columns number of columns
+	 * @return paths of the files, in frame order
+	 * @throws IOException
+	 */
+	public static List<String> writeMasks(File directory, int frames, int rows, int columns) throws IOException
+	{
+		byte[] masks = createMasks(frames, rows, columns);
+		List<String> paths = new ArrayList<String>();
+		for (int frame = 0; frame < frames; frame++) {
+			BufferedImage image = new BufferedImage(columns, rows, BufferedImage.TYPE_BYTE_GRAY);
+			image.getRaster().setDataElements(0, 0, columns, rows,
+					Arrays.copyOfRange(masks, frame * rows * columns, (frame + 1) * rows * columns));
+			File file = new File(directory, String.format("mask%04d.png", frame + 1));
+			ImageIO.write(image, "png", file);
+			paths.add(file.getAbsolutePath());
+		}
+		return paths;
+	}
+
+	/**
+	 * Read the header of a DICOM file up to PixelData, as done by DicomReader.
+	 * 
+	 * @param file DICOM file
+	 * @return header
+	 * @throws IOException
+	 */
+	public static DicomObject readHeader(File file) throws IOException
+	{
+		DicomInputStream dis = null;
+		try {
+			dis = new DicomInputStream(file);
+			dis.setHandler(new StopTagInputHandler(Tag.PixelData));
+			return dis.readDicomObject();
+		} finally {
+			IOUtils.closeQuietly(dis);
+		}
+	}
+
+	public static File createTemporaryDirectory(String prefix) throws IOException
+	{
+		File directory = File.createTempFile(prefix, "");
+		if (!directory.delete() || !directory.mkdir())
+			throw new IOException("Could not create directory " + directory);
+		return directory;
+	}
+
+	public static void deleteDirectory(File directory)
+	{
+		FileUtils.deleteQuietly(directory);
+	}
+
+	private static void putString(AttributeList list, Attribute attribute, String... values) throws DicomException
+	{
+		for (String value : values) {
+			attribute.addValue(value);
+		}
+		list.put(attribute);
+	}
+
+	private static void putInt(AttributeList list, Attribute attribute, int value) throws DicomException
+	{
+		attribute.addValue(value);
+		list.put(attribute);
+	}
+}
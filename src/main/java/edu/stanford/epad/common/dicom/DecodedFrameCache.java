@@ -0,0 +1,456 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.common.dicom;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is a cache of decoded frames, keyed by file, frame number and render mode.
+ * <p>
+ * The cache keeps a copy of the pixels of each frame, either on the Java heap or, if it was created with off-heap
+ * storage, in direct buffers outside it. {@link #get(File, int, String)} returns a new image holding those pixels,
+ * taken from {@link RasterImagePool}, so callers can release it as they would an image they rendered themselves.
+ * </p>
+ * <p>
+ * Files are identified by their canonical path, and each entry records the modification time and length of the file
+ * when it was rendered; an entry whose file has changed since is dropped when it is looked up. The cache holds at most
+ * {@link #getMaximumBytes()} bytes of pixels, dropping the least recently used frames when a new frame does not fit.
+ * Only images of the predefined types with a single bank of byte or short data are cached.
+ * </p>
+ */
+public class DecodedFrameCache
+{
+	/**
+	 * Default bound of the cache returned by {@link #getInstance()}.
+	 */
+	public static final long DEFAULT_MAXIMUM_BYTES = 256L * 1024 * 1024;
+
+	private static DecodedFrameCache ourInstance = new DecodedFrameCache(DEFAULT_MAXIMUM_BYTES, false);
+
+	private final Map<FrameKey, CachedFrame> frameMap = new LinkedHashMap<FrameKey, CachedFrame>(16, 0.75f, true);
+	private final long maximumBytes;
+	private final boolean offHeap;
+	private long bytes = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	public static DecodedFrameCache getInstance()
+	{
+		return ourInstance;
+	}
+
+	/**
+	 * @param maximumBytes maximum number of bytes of pixels held by the cache
+	 * @param offHeap true to hold the pixels in direct buffers outside the Java heap
+	 */
+	public DecodedFrameCache(long maximumBytes, boolean offHeap)
+	{
+		this.maximumBytes = maximumBytes;
+		this.offHeap = offHeap;
+	}
+
+	public long getMaximumBytes()
+	{
+		return maximumBytes;
+	}
+
+	public boolean isOffHeap()
+	{
+		return offHeap;
+	}
+
+	/**
+	 * @return number of bytes of pixels currently held by the cache
+	 */
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	/**
+	 * @return number of frames currently held by the cache
+	 */
+	public synchronized int getSize()
+	{
+		return frameMap.size();
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * @return number of frames dropped to make room for others
+	 */
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	/**
+	 * @return number of frames dropped because their file changed or was invalidated
+	 */
+	public long getInvalidations()
+	{
+		return invalidations.get();
+	}
+
+	/**
+	 * Get a cached frame.
+	 * 
+	 * @param dicomFile DICOM file
+	 * @param frameValue frame number
+	 * @param mode render mode, for example the name of a {@link RasterProcessor.PackedFormat}
+	 * @return new image holding the cached pixels, or null if the frame is not cached or its file has changed
+	 * @throws IOException if the canonical path of the file cannot be determined
+	 */
+	public BufferedImage get(File dicomFile, int frameValue, String mode) throws IOException
+	{
+		FrameKey key = new FrameKey(dicomFile.getCanonicalPath(), frameValue, mode);
+		long lastModified = dicomFile.lastModified();
+		long length = dicomFile.length();
+		CachedFrame frame;
+
+		synchronized (this) {
+			frame = frameMap.get(key);
+			if (frame != null && (frame.lastModified != lastModified || frame.length != length)) {
+				remove(key);
+				invalidations.incrementAndGet();
+				frame = null;
+			}
+		}
+		if (frame == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return frame.createImage();
+	}
+
+	/**
+	 * Indicates whether a frame is cached and its file unchanged, without counting a hit or a miss.
+	 * 
+	 * @param dicomFile DICOM file
+	 * @param frameValue frame number
+	 * @param mode render mode
+	 * @return true if {@link #get(File, int, String)} would currently return the frame
+	 * @throws IOException if the canonical path of the file cannot be determined
+	 */
+	public boolean contains(File dicomFile, int frameValue, String mode) throws IOException
+	{
+		FrameKey key = new FrameKey(dicomFile.getCanonicalPath(), frameValue, mode);
+		long lastModified = dicomFile.lastModified();
+		long length = dicomFile.length();
+
+		synchronized (this) {
+			CachedFrame frame = frameMap.get(key);
+			return frame != null && frame.lastModified == lastModified && frame.length == length;
+		}
+	}
+
+	/**
+	 * Cache a copy of a rendered frame. The image itself is not kept and may be released or modified afterwards.
+	 * 
+	 * @param dicomFile DICOM file
+	 * @param frameValue frame number
+	 * @param mode render mode
+	 * @param image rendered frame, ignored if its pixels cannot be cached
+	 * @throws IOException if the canonical path of the file cannot be determined
+	 */
+	public void put(File dicomFile, int frameValue, String mode, BufferedImage image) throws IOException
+	{
+		if (!isCacheable(image))
+			return;
+		DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+		long size = (long)dataBuffer.getSize() * DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8;
+		if (size > maximumBytes)
+			return;
+		FrameKey key = new FrameKey(dicomFile.getCanonicalPath(), frameValue, mode);
+		CachedFrame frame = new CachedFrame(image, dicomFile.lastModified(), dicomFile.length(), (int)size, offHeap);
+
+		synchronized (this) {
+			remove(key);
+			Iterator<CachedFrame> eldest = frameMap.values().iterator();
+			while (bytes + size > maximumBytes && eldest.hasNext()) {
+				bytes -= eldest.next().size;
+				eldest.remove();
+				evictions.incrementAndGet();
+			}
+			frameMap.put(key, frame);
+			bytes += size;
+		}
+	}
+
+	/**
+	 * Drop all cached frames of a file.
+	 * 
+	 * @param dicomFile DICOM file
+	 * @throws IOException if the canonical path of the file cannot be determined
+	 */
+	public synchronized void invalidate(File dicomFile) throws IOException
+	{
+		String path = dicomFile.getCanonicalPath();
+		Iterator<Map.Entry<FrameKey, CachedFrame>> entries = frameMap.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<FrameKey, CachedFrame> entry = entries.next();
+			if (entry.getKey().path.equals(path)) {
+				bytes -= entry.getValue().size;
+				entries.remove();
+				invalidations.incrementAndGet();
+			}
+		}
+	}
+
+	public synchronized void clear()
+	{
+		frameMap.clear();
+		bytes = 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "DecodedFrameCache[" + getSize() + " frames, " + getBytes() + " bytes, hits=" + getHits() + ", misses="
+				+ getMisses() + ", evictions=" + getEvictions() + ", invalidations=" + getInvalidations() + "]";
+	}
+
+	private void remove(FrameKey key)
+	{
+		CachedFrame removed = frameMap.remove(key);
+		if (removed != null)
+			bytes -= removed.size;
+	}
+
+	private static boolean isCacheable(BufferedImage image)
+	{
+		if (image == null || image.getType() == BufferedImage.TYPE_CUSTOM || image.getRaster().getParent() != null)
+			return false;
+		DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+		return dataBuffer.getNumBanks() == 1 && dataBuffer.getOffset() == 0
+				&& (dataBuffer instanceof DataBufferByte || dataBuffer instanceof DataBufferUShort
+						|| dataBuffer instanceof DataBufferShort);
+	}
+
+	/**
+	 * Copy of the pixels and properties of a frame.
+	 */
+	private static class CachedFrame
+	{
+		final int width;
+		final int height;
+		final int imageType;
+		final Hashtable<String, Object> properties;
+		final ByteBuffer pixels;
+		final long lastModified;
+		final long length;
+		final int size;
+
+		CachedFrame(BufferedImage image, long lastModified, long length, int size, boolean offHeap)
+		{
+			this.width = image.getWidth();
+			this.height = image.getHeight();
+			this.imageType = image.getType();
+			this.properties = getProperties(image);
+			this.lastModified = lastModified;
+			this.length = length;
+			this.size = size;
+			this.pixels = (offHeap ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size))
+					.order(ByteOrder.nativeOrder());
+			DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+			if (dataBuffer instanceof DataBufferByte)
+				pixels.duplicate().put(((DataBufferByte)dataBuffer).getData());
+			else if (dataBuffer instanceof DataBufferUShort)
+				pixels.asShortBuffer().put(((DataBufferUShort)dataBuffer).getData());
+			else
+				pixels.asShortBuffer().put(((DataBufferShort)dataBuffer).getData());
+		}
+
+		BufferedImage createImage()
+		{
+			BufferedImage image = RasterImagePool.getInstance().acquireImage(width, height, imageType);
+			DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+			if (dataBuffer instanceof DataBufferByte)
+				pixels.duplicate().get(((DataBufferByte)dataBuffer).getData());
+			else if (dataBuffer instanceof DataBufferUShort)
+				pixels.asShortBuffer().get(((DataBufferUShort)dataBuffer).getData());
+			else
+				pixels.asShortBuffer().get(((DataBufferShort)dataBuffer).getData());
+			if (properties.isEmpty())
+				return image;
+			return new BufferedImage(image.getColorModel(), image.getRaster(), image.isAlphaPremultiplied(),
+					properties);
+		}
+
+		private static Hashtable<String, Object> getProperties(BufferedImage image)
+		{
+			Hashtable<String, Object> properties = new Hashtable<String, Object>();
+			String[] names = image.getPropertyNames();
+			if (names != null) {
+				for (String name : names) {
+					Object value = image.getProperty(name);
+					if (value != null && value != Image.UndefinedProperty)
+						properties.put(name, value);
+				}
+			}
+			return properties;
+		}
+	}
+
+	/**
+	 * Key of the cache: canonical path of the file, frame number and render mode.
+	 */
+	private static class FrameKey
+	{
+		private final String path;
+		private final int frameValue;
+		private final String mode;
+
+		FrameKey(String path, int frameValue, String mode)
+		{
+			this.path = path;
+			this.frameValue = frameValue;
+			this.mode = mode;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof FrameKey)) {
+				return false;
+			}
+			FrameKey other = (FrameKey)o;
+			return frameValue == other.frameValue && path.equals(other.path) && mode.equals(other.mode);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (path.hashCode() * 31 + frameValue) * 31 + mode.hashCode();
+		}
+	}
+}
@@ -0,0 +1,702 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.common.dicom;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.StopTagInputHandler;
+
+import edu.stanford.epad.common.util.EPADLogger;
+
+/**
+ * Scans a directory tree for DICOM files and keeps the main header attributes of each file in a binary index.
+ * <p>
+ * Directories are listed and files read in parallel on a pool of their own, by default the one returned by
+ * {@link #getSharedIOPool()}, so that threads blocked on the disk do not hold up the renders on
+ * {@link ParallelRasterRenderer#getSharedPool()}. Each file is checked for the DICM magic word and its header parsed
+ * once, up to PixelData, to obtain the study, series and instance UIDs, the instance number, the image position and
+ * orientation and the position of PixelData.
+ * </p>
+ * <p>
+ * The entries are written to an index file, by default {@link #INDEX_FILE_NAME} in the scanned directory, in which the
+ * UIDs and directory names are stored once in a string table. A later scan of the same directory reads the index and
+ * only parses files that are new or whose length or modification time has changed; files found not to be DICOM files
+ * are also remembered, so that they are not checked again. Files that cannot be read, because of an I/O error or a
+ * malformed header, are logged and left out of both the result and the index, so that the next scan tries them again.
+ * Symbolic links to directories are not followed, so that a link to an ancestor does not make the scan loop. A scanner
+ * should not run several scans at once.
+ * </p>
+ */
+public class DicomDirectoryScanner
+{
+	private static final EPADLogger log = EPADLogger.getInstance();
+
+	public static final String INDEX_FILE_NAME = ".dicom-index";
+
+	private static final int MAGIC = 0x4449434e;
+	private static final int VERSION = 1;
+	/**
+	 * Number of files below which a task reads its files itself rather than splitting them.
+	 */
+	private static final int FILES_PER_TASK = 16;
+	private static final int MAGIC_WORD_OFFSET = 128;
+	private static final byte[] DICOM_MAGIC_WORD = { 'D', 'I', 'C', 'M' };
+	/**
+	 * Number of threads of the shared I/O pool. Reads spend most of their time waiting for the disk, so there are more
+	 * threads than processors.
+	 */
+	public static final int DEFAULT_IO_THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+	private static ForkJoinPool sharedIOPool = new ForkJoinPool(DEFAULT_IO_THREADS);
+
+	private ForkJoinPool pool = sharedIOPool;
+	private final AtomicInteger filesRead = new AtomicInteger();
+	private final AtomicInteger filesReused = new AtomicInteger();
+
+	/**
+	 * Header attributes of one file.
+	 */
+	public static final class Entry
+	{
+		private final String path;
+		private final long fileLength;
+		private final long lastModified;
+		private final boolean dicom;
+		private final String studyUID;
+		private final String seriesUID;
+		private final String imageUID;
+		private final int instanceNumber;
+		private final double[] imagePosition;
+		private final double[] imageOrientation;
+		private final long pixelDataOffset;
+
+		Entry(String path, long fileLength, long lastModified, boolean dicom, String studyUID, String seriesUID,
+				String imageUID, int instanceNumber, double[] imagePosition, double[] imageOrientation,
+				long pixelDataOffset)
+		{
+			this.path = path;
+			this.fileLength = fileLength;
+			this.lastModified = lastModified;
+			this.dicom = dicom;
+			this.studyUID = studyUID;
+			this.seriesUID = seriesUID;
+			this.imageUID = imageUID;
+			this.instanceNumber = instanceNumber;
+			this.imagePosition = imagePosition;
+			this.imageOrientation = imageOrientation;
+			this.pixelDataOffset = pixelDataOffset;
+		}
+
+		public File getFile()
+		{
+			return new File(path);
+		}
+
+		public String getPath()
+		{
+			return path;
+		}
+
+		public long getFileLength()
+		{
+			return fileLength;
+		}
+
+		public long getLastModified()
+		{
+			return lastModified;
+		}
+
+		/**
+		 * @return false if the file is not a DICOM file, in which case it only has a path, length and time
+		 */
+		public boolean isDicom()
+		{
+			return dicom;
+		}
+
+		public String getStudyUID()
+		{
+			return studyUID;
+		}
+
+		public String getSeriesUID()
+		{
+			return seriesUID;
+		}
+
+		public String getImageUID()
+		{
+			return imageUID;
+		}
+
+		public int getInstanceNumber()
+		{
+			return instanceNumber;
+		}
+
+		/**
+		 * @return copy of ImagePositionPatient, or null if the file has none
+		 */
+		public double[] getImagePosition()
+		{
+			return imagePosition == null ? null : imagePosition.clone();
+		}
+
+		/**
+		 * @return copy of ImageOrientationPatient, or null if the file has none
+		 */
+		public double[] getImageOrientation()
+		{
+			return imageOrientation == null ? null : imageOrientation.clone();
+		}
+
+		/**
+		 * @return position of the PixelData value, or -1 if the file has none
+		 */
+		public long getPixelDataOffset()
+		{
+			return pixelDataOffset;
+		}
+
+		boolean isCurrent(File file)
+		{
+			return file.length() == fileLength && file.lastModified() == lastModified;
+		}
+	}
+
+	/**
+	 * Pool used by scanners created without an explicit pool, for blocking reads of DICOM headers. Other header reads in
+	 * the process, such as {@link DicomHeaderSummary#readAll(List, int...)}, may submit tasks to it.
+	 * 
+	 * @return shared pool
+	 */
+	public static ForkJoinPool getSharedIOPool()
+	{
+		return sharedIOPool;
+	}
+
+	public ForkJoinPool getPool()
+	{
+		return pool;
+	}
+
+	/**
+	 * @param value pool listing the directories and reading the files, by default {@link #getSharedIOPool()}
+	 */
+	public void setPool(ForkJoinPool value)
+	{
+		pool = value;
+	}
+
+	/**
+	 * @return number of files parsed by the last scan
+	 */
+	public int getFilesRead()
+	{
+		return filesRead.get();
+	}
+
+	/**
+	 * @return number of files of the last scan taken from the index without being read
+	 */
+	public int getFilesReused()
+	{
+		return filesReused.get();
+	}
+
+	/**
+	 * Scan a directory tree, using and updating the index file {@link #INDEX_FILE_NAME} in the directory.
+	 * 
+	 * @param directory directory
+	 * @return DICOM files found, ordered by path
+	 * @throws IOException if the index cannot be written
+	 */
+	public List<Entry> scan(File directory) throws IOException
+	{
+		return scan(directory, new File(directory, INDEX_FILE_NAME));
+	}
+
+	/**
+	 * Scan a directory tree.
+	 * 
+	 * @param directory directory
+	 * @param indexFile index of a previous scan, which is read if it exists and written with the result of this scan
+	 * @return DICOM files found, ordered by path
+	 * @throws IOException if the index cannot be written
+	 */
+	public List<Entry> scan(File directory, File indexFile) throws IOException
+	{
+		Map<String, Entry> previous = new HashMap<String, Entry>();
+		try {
+			for (Entry entry : readIndex(indexFile))
+				previous.put(entry.getPath(), entry);
+		} catch (IOException e) {
+			log.warning("Ignoring unreadable index " + indexFile.getAbsolutePath(), e);
+		}
+
+		filesRead.set(0);
+		filesReused.set(0);
+		Queue<Entry> found = new ConcurrentLinkedQueue<Entry>();
+		pool.invoke(new DirectoryTask(directory, indexFile, previous, found));
+
+		List<Entry> entries = new ArrayList<Entry>(found);
+		Collections.sort(entries, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry first, Entry second)
+			{
+				return first.getPath().compareTo(second.getPath());
+			}
+		});
+		writeIndex(indexFile, entries);
+		log.info("Scanned " + entries.size() + " files in " + directory.getAbsolutePath() + ", " + filesRead.get()
+				+ " read, " + filesReused.get() + " unchanged");
+
+		List<Entry> dicomEntries = new ArrayList<Entry>(entries.size());
+		for (Entry entry : entries) {
+			if (entry.isDicom())
+				dicomEntries.add(entry);
+		}
+		return dicomEntries;
+	}
+
+	/**
+	 * Read the header attributes of one file.
+	 * <p>
+	 * The header is parsed directly up to PixelData, without going through {@link DicomReader}, which logs the opening
+	 * and closing of every file.
+	 * </p>
+	 * 
+	 * @param file file
+	 * @return entry, marked as not DICOM if the file has no DICM magic word, or null if the file cannot be read or its
+	 *         header cannot be parsed
+	 */
+	public static Entry readEntry(File file)
+	{
+		String path = file.getAbsolutePath();
+		long fileLength = file.length();
+		long lastModified = file.lastModified();
+		DicomInputStream dis = null;
+		try {
+			if (!hasMagicWord(file))
+				return new Entry(path, fileLength, lastModified, false, null, null, null, 0, null, null, -1);
+			dis = new DicomInputStream(file);
+			dis.setHandler(new StopTagInputHandler(Tag.PixelData));
+			DicomObject header = dis.readDicomObject();
+			long pixelDataOffset = dis.tag() == Tag.PixelData ? dis.getStreamPosition() : -1;
+			DicomHeaderSummary summary = DicomHeaderSummary.create(file, header, DicomHeaderSummary.DEFAULT_TAGS);
+			return new Entry(path, fileLength, lastModified, true, summary.getStudyIUID(), summary.getSeriesIUID(),
+					summary.getImageIUID(), summary.getInt(Tag.InstanceNumber, 0),
+					summary.getDoubles(Tag.ImagePositionPatient), summary.getDoubles(Tag.ImageOrientationPatient),
+					pixelDataOffset);
+		} catch (IOException e) {
+			log.warning("Error reading header of " + path, e);
+			return null;
+		} catch (RuntimeException e) {
+			log.warning("Error parsing header of " + path, e);
+			return null;
+		} finally {
+			IOUtils.closeQuietly(dis);
+		}
+	}
+
+	/**
+	 * Unlike {@link DicomFileUtil#hasMagicWordInHeader(File)}, which takes an unreadable file for a file that is not
+	 * DICOM, this throws read errors, so that the file is not remembered as not DICOM.
+	 */
+	private static boolean hasMagicWord(File file) throws IOException
+	{
+		if (file.length() < MAGIC_WORD_OFFSET + DICOM_MAGIC_WORD.length)
+			return false;
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			byte[] magicWord = new byte[DICOM_MAGIC_WORD.length];
+			in.seek(MAGIC_WORD_OFFSET);
+			in.readFully(magicWord);
+			for (int i = 0; i < magicWord.length; i++) {
+				if (Character.toUpperCase(magicWord[i]) != DICOM_MAGIC_WORD[i])
+					return false;
+			}
+			return true;
+		} catch (EOFException e) {
+			return false;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Read an index file.
+	 * 
+	 * @param indexFile index file
+	 * @return entries, including those of files that are not DICOM files, or an empty list if there is no index
+	 * @throws IOException if the file is not an index or is truncated
+	 */
+	public static List<Entry> readIndex(File indexFile) throws IOException
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+		if (!indexFile.isFile())
+			return entries;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("Not a DICOM index: " + indexFile.getAbsolutePath());
+			String[] strings = new String[in.readInt()];
+			for (int i = 0; i < strings.length; i++)
+				strings[i] = in.readUTF();
+			int size = in.readInt();
+			for (int i = 0; i < size; i++) {
+				String directory = strings[in.readInt()];
+				String path = new File(directory, in.readUTF()).getPath();
+				long fileLength = in.readLong();
+				long lastModified = in.readLong();
+				boolean dicom = in.readBoolean();
+				if (!dicom) {
+					entries.add(new Entry(path, fileLength, lastModified, false, null, null, null, 0, null, null, -1));
+					continue;
+				}
+				String studyUID = readString(in, strings);
+				String seriesUID = readString(in, strings);
+				String imageUID = readString(in, strings);
+				int instanceNumber = in.readInt();
+				double[] imagePosition = readDoubles(in);
+				double[] imageOrientation = readDoubles(in);
+				long pixelDataOffset = in.readLong();
+				entries.add(new Entry(path, fileLength, lastModified, true, studyUID, seriesUID, imageUID,
+						instanceNumber, imagePosition, imageOrientation, pixelDataOffset));
+			}
+		} catch (EOFException e) {
+			throw new IOException("Truncated DICOM index: " + indexFile.getAbsolutePath(), e);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+		return entries;
+	}
+
+	/**
+	 * Write an index file.
+	 * 
+	 * @param indexFile index file
+	 * @param entries entries
+	 * @throws IOException
+	 */
+	public static void writeIndex(File indexFile, Collection<Entry> entries) throws IOException
+	{
+		Map<String, Integer> stringIndexes = new HashMap<String, Integer>();
+		List<String> strings = new ArrayList<String>();
+		for (Entry entry : entries) {
+			addString(new File(entry.getPath()).getParent(), stringIndexes, strings);
+			addString(entry.getStudyUID(), stringIndexes, strings);
+			addString(entry.getSeriesUID(), stringIndexes, strings);
+		}
+
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(strings.size());
+			for (String string : strings)
+				out.writeUTF(string);
+			out.writeInt(entries.size());
+			for (Entry entry : entries) {
+				File file = new File(entry.getPath());
+				out.writeInt(stringIndexes.get(file.getParent()));
+				out.writeUTF(file.getName());
+				out.writeLong(entry.getFileLength());
+				out.writeLong(entry.getLastModified());
+				out.writeBoolean(entry.isDicom());
+				if (!entry.isDicom())
+					continue;
+				writeString(out, entry.getStudyUID(), stringIndexes);
+				writeString(out, entry.getSeriesUID(), stringIndexes);
+				writeString(out, entry.getImageUID(), stringIndexes);
+				out.writeInt(entry.getInstanceNumber());
+				writeDoubles(out, entry.imagePosition);
+				writeDoubles(out, entry.imageOrientation);
+				out.writeLong(entry.getPixelDataOffset());
+			}
+			out.flush();
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	private static void addString(String string, Map<String, Integer> stringIndexes, List<String> strings)
+	{
+		if (string != null && !stringIndexes.containsKey(string)) {
+			stringIndexes.put(string, strings.size());
+			strings.add(string);
+		}
+	}
+
+	/**
+	 * Write a string as its index in the string table, or as -1 followed by the string if it is not in the table, or
+	 * as -2 if it is null.
+	 */
+	private static void writeString(DataOutputStream out, String string, Map<String, Integer> stringIndexes)
+			throws IOException
+	{
+		if (string == null) {
+			out.writeInt(-2);
+		} else if (stringIndexes.containsKey(string)) {
+			out.writeInt(stringIndexes.get(string));
+		} else {
+			out.writeInt(-1);
+			out.writeUTF(string);
+		}
+	}
+
+	private static String readString(DataInputStream in, String[] strings) throws IOException
+	{
+		int index = in.readInt();
+		if (index == -2)
+			return null;
+		else if (index == -1)
+			return in.readUTF();
+		else
+			return strings[index];
+	}
+
+	private static void writeDoubles(DataOutputStream out, double[] values) throws IOException
+	{
+		if (values == null) {
+			out.writeByte(-1);
+			return;
+		}
+		out.writeByte(values.length);
+		for (double value : values)
+			out.writeDouble(value);
+	}
+
+	private static double[] readDoubles(DataInputStream in) throws IOException
+	{
+		int length = in.readByte();
+		if (length < 0)
+			return null;
+		double[] values = new double[length];
+		for (int i = 0; i < length; i++)
+			values[i] = in.readDouble();
+		return values;
+	}
+
+	/**
+	 * Lists a directory, scanning its subdirectories and its files in parallel.
+	 */
+	private class DirectoryTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final File directory;
+		private final File indexFile;
+		private final Map<String, Entry> previous;
+		private final Queue<Entry> found;
+
+		DirectoryTask(File directory, File indexFile, Map<String, Entry> previous, Queue<Entry> found)
+		{
+			this.directory = directory;
+			this.indexFile = indexFile;
+			this.previous = previous;
+			this.found = found;
+		}
+
+		@Override
+		protected void compute()
+		{
+			File[] children = directory.listFiles();
+			if (children == null) {
+				log.warning("Cannot list directory " + directory.getAbsolutePath());
+				return;
+			}
+			List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+			List<File> files = new ArrayList<File>();
+			for (File child : children) {
+				if (child.isDirectory()) {
+					if (Files.isSymbolicLink(child.toPath()))
+						log.debug("Not following symbolic link " + child.getAbsolutePath());
+					else
+						tasks.add(new DirectoryTask(child, indexFile, previous, found));
+				} else if (child.isFile() && !child.equals(indexFile))
+					files.add(child);
+			}
+			tasks.add(new FileTask(files, 0, files.size(), previous, found));
+			invokeAll(tasks);
+		}
+	}
+
+	/**
+	 * Reads a range of files, splitting it while it is longer than {@link DicomDirectoryScanner#FILES_PER_TASK}.
+	 */
+	private class FileTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final List<File> files;
+		private final int start;
+		private final int end;
+		private final Map<String, Entry> previous;
+		private final Queue<Entry> found;
+
+		FileTask(List<File> files, int start, int end, Map<String, Entry> previous, Queue<Entry> found)
+		{
+			this.files = files;
+			this.start = start;
+			this.end = end;
+			this.previous = previous;
+			this.found = found;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (end - start > FILES_PER_TASK) {
+				int middle = (start + end) >>> 1;
+				invokeAll(new FileTask(files, start, middle, previous, found), new FileTask(files, middle, end,
+						previous, found));
+				return;
+			}
+			for (int i = start; i < end; i++) {
+				File file = files.get(i);
+				Entry entry = previous.get(file.getAbsolutePath());
+				if (entry != null && entry.isCurrent(file)) {
+					filesReused.incrementAndGet();
+				} else {
+					entry = readEntry(file);
+					filesRead.incrementAndGet();
+				}
+				// A file that could not be read is left out, so that the next scan reads it again
+				if (entry != null)
+					found.add(entry);
+			}
+		}
+	}
+}
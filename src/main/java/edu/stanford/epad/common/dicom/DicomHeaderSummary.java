@@ -0,0 +1,481 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.common.dicom;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.IOUtils;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.StopTagInputHandler;
+
+import edu.stanford.epad.common.util.EPADLogger;
+
+/**
+ * Immutable summary of selected header attributes of a DICOM file.
+ * <p>
+ * The file is parsed once, stopping after the last requested tag and never going past PixelData, and the string values
+ * of the requested tags are kept in two parallel arrays. Several attributes of the same file can therefore be obtained
+ * with a single read, and summaries of many files can be read in parallel with {@link #readAll(List, int[])}.
+ * </p>
+ */
+public final class DicomHeaderSummary
+{
+	private static final EPADLogger log = EPADLogger.getInstance();
+
+	public static final int[] PATIENT_TAGS = { Tag.PatientName, Tag.PatientID, Tag.PatientBirthDate, Tag.PatientSex };
+	public static final int[] IDENTIFIER_TAGS = { Tag.StudyInstanceUID, Tag.SeriesInstanceUID, Tag.SOPInstanceUID,
+			Tag.SOPClassUID, Tag.Modality, Tag.InstanceNumber, Tag.SeriesNumber };
+	public static final int[] GEOMETRY_TAGS = { Tag.ImagePositionPatient, Tag.ImageOrientationPatient, Tag.PixelSpacing,
+			Tag.SliceThickness, Tag.SliceLocation };
+	public static final int[] PIXEL_TAGS = { Tag.Rows, Tag.Columns, Tag.NumberOfFrames, Tag.SamplesPerPixel,
+			Tag.PhotometricInterpretation, Tag.BitsAllocated, Tag.BitsStored, Tag.HighBit, Tag.PixelRepresentation,
+			Tag.RescaleSlope, Tag.RescaleIntercept, Tag.WindowCenter, Tag.WindowWidth };
+	/**
+	 * Patient, identifier, geometry and pixel module tags.
+	 */
+	public static final int[] DEFAULT_TAGS = combine(PATIENT_TAGS, IDENTIFIER_TAGS, GEOMETRY_TAGS, PIXEL_TAGS);
+
+	private final File file;
+	private final long fileLength;
+	private final long lastModified;
+	private final int[] tags;
+	private final String[][] values;
+
+	private DicomHeaderSummary(File file, long fileLength, long lastModified, int[] tags, String[][] values)
+	{
+		this.file = file;
+		this.fileLength = fileLength;
+		this.lastModified = lastModified;
+		this.tags = tags;
+		this.values = values;
+	}
+
+	/**
+	 * Read the default tags of a file.
+	 * 
+	 * @param dicomFile DICOM file
+	 * @return summary
+	 * @throws IOException
+	 * @see #DEFAULT_TAGS
+	 */
+	public static DicomHeaderSummary read(File dicomFile) throws IOException
+	{
+		return read(dicomFile, DEFAULT_TAGS);
+	}
+
+	/**
+	 * Read selected tags of a file.
+	 * 
+	 * @param dicomFile DICOM file
+	 * @param tags tags to be kept
+	 * @return summary
+	 * @throws IOException
+	 */
+	public static DicomHeaderSummary read(File dicomFile, int... tags) throws IOException
+	{
+		int[] sortedTags = sortTags(tags);
+		long fileLength = dicomFile.length();
+		long lastModified = dicomFile.lastModified();
+		DicomInputStream dis = null;
+
+		try {
+			dis = new DicomInputStream(dicomFile);
+			dis.setHandler(new StopTagInputHandler(getStopTag(sortedTags)));
+			return create(dicomFile, fileLength, lastModified, dis.readDicomObject(), sortedTags);
+		} finally {
+			IOUtils.closeQuietly(dis);
+		}
+	}
+
+	/**
+	 * Read selected tags of a list of files in parallel.
+	 * <p>
+	 * The files are read by the I/O pool returned by {@link DicomDirectoryScanner#getSharedIOPool()}. Files that cannot
+	 * be read are logged and have a null entry in the result.
+	 * </p>
+	 * 
+	 * @param dicomFiles DICOM files
+	 * @param tags tags to be kept
+	 * @return summaries, in the order of the files
+	 */
+	public static List<DicomHeaderSummary> readAll(List<File> dicomFiles, int... tags)
+	{
+		return readAll(dicomFiles, DicomDirectoryScanner.getSharedIOPool(), tags);
+	}
+
+	/**
+	 * Read selected tags of a list of files in parallel on a given pool.
+	 * <p>
+	 * Files that cannot be read are logged and have a null entry in the result. If the calling thread is interrupted,
+	 * every entry is null.
+	 * </p>
+	 * 
+	 * @param dicomFiles DICOM files
+	 * @param pool pool reading the files
+	 * @param tags tags to be kept
+	 * @return summaries, in the order of the files
+	 */
+	public static List<DicomHeaderSummary> readAll(List<File> dicomFiles, ExecutorService pool, int... tags)
+	{
+		final int[] sortedTags = sortTags(tags);
+		List<Callable<DicomHeaderSummary>> readers = new ArrayList<Callable<DicomHeaderSummary>>(dicomFiles.size());
+		for (final File dicomFile : dicomFiles) {
+			readers.add(new Callable<DicomHeaderSummary>() {
+				@Override
+				public DicomHeaderSummary call() throws IOException
+				{
+					return read(dicomFile, sortedTags);
+				}
+			});
+		}
+
+		List<DicomHeaderSummary> summaries = new ArrayList<DicomHeaderSummary>(dicomFiles.size());
+		List<Future<DicomHeaderSummary>> results;
+		try {
+			results = pool.invokeAll(readers);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			for (int i = 0; i < dicomFiles.size(); i++)
+				summaries.add(null);
+			return summaries;
+		}
+		for (int i = 0; i < results.size(); i++) {
+			try {
+				summaries.add(results.get(i).get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				summaries.add(null);
+			} catch (ExecutionException e) {
+				log.warning("Error reading header of " + dicomFiles.get(i).getName(), e.getCause());
+				summaries.add(null);
+			}
+		}
+		return summaries;
+	}
+
+	/**
+	 * Create a summary from a header that has already been parsed.
+	 * 
+	 * @param dicomFile file the header was read from
+	 * @param dicomObject header
+	 * @param tags tags to be kept
+	 * @return summary
+	 */
+	public static DicomHeaderSummary create(File dicomFile, DicomObject dicomObject, int... tags)
+	{
+		return create(dicomFile, dicomFile.length(), dicomFile.lastModified(), dicomObject, sortTags(tags));
+	}
+
+	private static DicomHeaderSummary create(File dicomFile, long fileLength, long lastModified,
+			DicomObject dicomObject, int[] sortedTags)
+	{
+		String[][] values = new String[sortedTags.length][];
+		for (int i = 0; i < sortedTags.length; i++) {
+			if (dicomObject.containsValue(sortedTags[i]))
+				values[i] = dicomObject.getStrings(sortedTags[i]);
+		}
+		return new DicomHeaderSummary(dicomFile, fileLength, lastModified, sortedTags, values);
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * @return length of the file when it was read
+	 */
+	public long getFileLength()
+	{
+		return fileLength;
+	}
+
+	/**
+	 * @return modification time of the file when it was read
+	 */
+	public long getLastModified()
+	{
+		return lastModified;
+	}
+
+	/**
+	 * @return copy of the tags kept in this summary, in ascending order
+	 */
+	public int[] getTags()
+	{
+		return tags.clone();
+	}
+
+	/**
+	 * @param tag tag
+	 * @return true if the tag was requested and has a value in the file
+	 */
+	public boolean containsValue(int tag)
+	{
+		int index = Arrays.binarySearch(tags, tag);
+		return index >= 0 && values[index] != null && values[index].length > 0;
+	}
+
+	/**
+	 * @param tag tag
+	 * @return first value of the tag, or null if it has no value or was not requested
+	 */
+	public String getString(int tag)
+	{
+		int index = Arrays.binarySearch(tags, tag);
+		if (index < 0 || values[index] == null || values[index].length == 0)
+			return null;
+		return values[index][0];
+	}
+
+	/**
+	 * @param tag tag
+	 * @return copy of the values of the tag, or null if it has no value or was not requested
+	 */
+	public String[] getStrings(int tag)
+	{
+		int index = Arrays.binarySearch(tags, tag);
+		if (index < 0 || values[index] == null)
+			return null;
+		return values[index].clone();
+	}
+
+	public int getInt(int tag, int defaultValue)
+	{
+		String value = getString(tag);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	public double getDouble(int tag, double defaultValue)
+	{
+		String value = getString(tag);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Double.parseDouble(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * @param tag tag
+	 * @return values of the tag as numbers, or null if it has no value or a value is not a number
+	 */
+	public double[] getDoubles(int tag)
+	{
+		int index = Arrays.binarySearch(tags, tag);
+		if (index < 0 || values[index] == null)
+			return null;
+		double[] doubles = new double[values[index].length];
+		try {
+			for (int i = 0; i < doubles.length; i++) {
+				doubles[i] = Double.parseDouble(values[index][i].trim());
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return doubles;
+	}
+
+	public String getPatientName()
+	{
+		return getString(Tag.PatientName);
+	}
+
+	public String getPatientID()
+	{
+		return getString(Tag.PatientID);
+	}
+
+	public String getStudyIUID()
+	{
+		return getString(Tag.StudyInstanceUID);
+	}
+
+	public String getSeriesIUID()
+	{
+		return getString(Tag.SeriesInstanceUID);
+	}
+
+	public String getImageIUID()
+	{
+		return getString(Tag.SOPInstanceUID);
+	}
+
+	public String getModality()
+	{
+		return getString(Tag.Modality);
+	}
+
+	public int getRows()
+	{
+		return getInt(Tag.Rows, 0);
+	}
+
+	public int getColumns()
+	{
+		return getInt(Tag.Columns, 0);
+	}
+
+	public int getNumberOfFrames()
+	{
+		return getInt(Tag.NumberOfFrames, 1);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "DicomHeaderSummary[" + file.getName() + ", " + tags.length + " tags]";
+	}
+
+	/**
+	 * @return tag following the last requested tag, or PixelData if that comes first
+	 */
+	private static int getStopTag(int[] sortedTags)
+	{
+		if (sortedTags.length == 0)
+			return Tag.PixelData;
+		long next = (sortedTags[sortedTags.length - 1] & 0xffffffffL) + 1;
+		return next < (Tag.PixelData & 0xffffffffL) ? (int)next : Tag.PixelData;
+	}
+
+	private static int[] sortTags(int[] tags)
+	{
+		int[] sortedTags = tags.clone();
+		Arrays.sort(sortedTags);
+		return sortedTags;
+	}
+
+	private static int[] combine(int[]... tagSets)
+	{
+		int length = 0;
+		for (int[] tagSet : tagSets)
+			length += tagSet.length;
+		int[] tags = new int[length];
+		int position = 0;
+		for (int[] tagSet : tagSets) {
+			System.arraycopy(tagSet, 0, tags, position, tagSet.length);
+			position += tagSet.length;
+		}
+		return tags;
+	}
+}
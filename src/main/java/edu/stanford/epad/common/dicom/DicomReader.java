@@ -105,19 +105,35 @@
 package edu.stanford.epad.common.dicom;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.PixelInterleavedSampleModel;
 import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 
-import javax.imageio.ImageIO;
 import javax.imageio.stream.FileImageInputStream;
 
 import org.apache.commons.io.IOUtils;
 import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.TransferSyntax;
 import org.dcm4che2.imageio.plugins.dcm.DicomImageReadParam;
 import org.dcm4che2.imageioimpl.plugins.dcm.DicomImageReader;
-import org.dcm4che2.imageioimpl.plugins.dcm.DicomImageReaderSpi;
 import org.dcm4che2.io.DicomInputStream;
 import org.dcm4che2.io.StopTagInputHandler;
 
@@ -135,20 +151,339 @@ import edu.stanford.epad.common.util.EPADLogger;
  *      Class extracted from https://bmir-gforge.stanford.edu/svn/dirac/trunk/ePAD/ePAD-2012/DicomInterface to remove
  *      dependency.
  */
-public class DicomReader
+public class DicomReader implements Closeable
 {
 	private static final EPADLogger log = EPADLogger.getInstance();
 	protected final File dicomFile;
 
+	/**
+	 * Single handle on the file, shared by the header parse, the reads of uncompressed frames and the codec.
+	 */
+	private RandomAccessFile dicomHandle = null;
+	/**
+	 * Indicates that the handle was opened by {@link #open()} and stays open until {@link #close()}.
+	 */
+	private boolean keepOpen = false;
+	private DicomObject header = null;
+	private TransferSyntax transferSyntax = null;
+	private long pixelDataOffset = -1;
+	private int pixelDataLength = -1;
+	private FileImageInputStream codecInput = null;
+	private DicomImageReader codec = null;
+	private boolean memoryMapped = false;
+	private MappedByteBuffer mappedPixelData = null;
+	private DecodedFrameCache frameCache = null;
+	private boolean persistFrameIndex = false;
+	private FrameOffsetIndex frameIndex = null;
+	private boolean parallelRendering = true;
+
+	/**
+	 * Receives the images generated by
+	 * {@link DicomReader#renderPackedImages(int, int, RasterProcessor.PackedFormat, FrameHandler)}.
+	 */
+	public interface FrameHandler
+	{
+		/**
+		 * Process the image of one frame.
+		 * <p>
+		 * The image is returned to {@link RasterImagePool} when this method returns and is reused for a later frame, so
+		 * it must not be kept.
+		 * </p>
+		 * 
+		 * @param frameValue frame number
+		 * @param packedImage packed image of the frame
+		 * @throws IOException
+		 */
+		void handleFrame(int frameValue, BufferedImage packedImage) throws IOException;
+	}
+
 	static {
-		ImageIO.scanForPlugins();
+		DicomImageReaderPool.getInstance();
 	}
 	
+	/**
+	 * Create a reader for a file.
+	 * <p>
+	 * Each method opens the file once and parses its header once, and closes it again before returning. To serve several
+	 * requests from one open handle and one parsed header, call {@link #open()} first and {@link #close()} when done.
+	 * </p>
+	 * 
+	 * @param dicomFile DICOM file
+	 */
 	public DicomReader(File dicomFile)
 	{
 		this.dicomFile = dicomFile;
 	}
 
+	/**
+	 * Open the file and parse its header, keeping both until {@link #close()} is called.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void open() throws IOException
+	{
+		openHandle();
+		keepOpen = true;
+	}
+
+	/**
+	 * Close the file handle opened by {@link #open()}.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		keepOpen = false;
+		closeHandle();
+	}
+
+	/**
+	 * Get the header of the file, up to PixelData.
+	 * 
+	 * @return header
+	 * @throws IOException
+	 */
+	public synchronized DicomObject getHeader() throws IOException
+	{
+		boolean opened = openHandle();
+		try {
+			return header;
+		} finally {
+			release(opened);
+		}
+	}
+
+	/**
+	 * Get a summary of the header parsed by this reader.
+	 * 
+	 * @return summary of {@link DicomHeaderSummary#DEFAULT_TAGS}
+	 * @throws IOException
+	 */
+	public synchronized DicomHeaderSummary getHeaderSummary() throws IOException
+	{
+		boolean opened = openHandle();
+		try {
+			return DicomHeaderSummary.create(dicomFile, header, DicomHeaderSummary.DEFAULT_TAGS);
+		} finally {
+			release(opened);
+		}
+	}
+
+	/**
+	 * Get the position of the PixelData value in the file.
+	 * 
+	 * @return offset in bytes, or -1 if the file has no PixelData
+	 * @throws IOException
+	 */
+	public synchronized long getPixelDataOffset() throws IOException
+	{
+		boolean opened = openHandle();
+		try {
+			return pixelDataOffset;
+		} finally {
+			release(opened);
+		}
+	}
+
+	/**
+	 * Get the length of the PixelData value.
+	 * 
+	 * @return length in bytes, or -1 if PixelData is encapsulated or missing
+	 * @throws IOException
+	 */
+	public synchronized int getPixelDataLength() throws IOException
+	{
+		boolean opened = openHandle();
+		try {
+			return pixelDataLength;
+		} finally {
+			release(opened);
+		}
+	}
+
+	/**
+	 * Indicates whether uncompressed PixelData is memory-mapped.
+	 * 
+	 * @return true if frames are served from a mapping of the file
+	 */
+	public synchronized boolean isMemoryMapped()
+	{
+		return memoryMapped;
+	}
+
+	/**
+	 * Serve uncompressed PixelData from a memory mapping of the file instead of copying each frame to the heap.
+	 * <p>
+	 * The rasters returned in this mode are backed by a {@link MappedDataBuffer} over the mapping, which
+	 * {@link RasterProcessor} reads in place, and stay valid after the file has been closed. Compressed PixelData is
+	 * decoded as usual.
+	 * </p>
+	 * 
+	 * @param memoryMapped true to map PixelData
+	 */
+	public synchronized void setMemoryMapped(boolean memoryMapped)
+	{
+		this.memoryMapped = memoryMapped;
+	}
+
+	/**
+	 * Get a view of the PixelData of one frame in the memory mapping of the file.
+	 * <p>
+	 * The view is a {@link ShortBuffer} in the byte order of the transfer syntax when 16 bits are allocated, and a
+	 * {@link ByteBuffer} when 8 bits are allocated. The mapping is read-only.
+	 * </p>
+	 * 
+	 * @param frameValue frame number
+	 * @return view of the frame, or null if PixelData is compressed or is not grayscale
+	 * @throws IOException
+	 */
+	public synchronized Buffer getFrameBuffer(int frameValue) throws IOException
+	{
+		boolean opened = openHandle();
+		try {
+			if (!isDirectlyReadable())
+				return null;
+			int bitsAllocated = header.getInt(Tag.BitsAllocated, 16);
+			int frameLength = getFrameLength(frameValue);
+			if (mappedPixelData == null) {
+				mappedPixelData = dicomHandle.getChannel().map(FileChannel.MapMode.READ_ONLY, pixelDataOffset,
+						pixelDataLength);
+			}
+			ByteBuffer frame = mappedPixelData.duplicate();
+			frame.position(frameValue * frameLength);
+			frame.limit(frameValue * frameLength + frameLength);
+			frame = frame.slice();
+			if (bitsAllocated == 8)
+				return frame;
+			frame.order(transferSyntax.bigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+			return frame.asShortBuffer();
+		} finally {
+			release(opened);
+		}
+	}
+
+	public synchronized DecodedFrameCache getFrameCache()
+	{
+		return frameCache;
+	}
+
+	/**
+	 * Serve packed images from a cache of decoded frames, and add the frames rendered by this reader to it.
+	 * 
+	 * @param frameCache cache, or null to render every frame
+	 * @see DecodedFrameCache#getInstance()
+	 */
+	public synchronized void setFrameCache(DecodedFrameCache frameCache)
+	{
+		this.frameCache = frameCache;
+	}
+
+	public synchronized boolean isPersistFrameIndex()
+	{
+		return persistFrameIndex;
+	}
+
+	/**
+	 * Keep the frame offset index of the file in a file next to it, see {@link FrameOffsetIndex#getIndexFile(File)}, so
+	 * that it is only built once even across restarts.
+	 * 
+	 * @param persistFrameIndex true to read and write the index file
+	 */
+	public synchronized void setPersistFrameIndex(boolean persistFrameIndex)
+	{
+		this.persistFrameIndex = persistFrameIndex;
+	}
+
+	public synchronized boolean isParallelRendering()
+	{
+		return parallelRendering;
+	}
+
+	/**
+	 * Split the render of large frames across the pool of {@link ParallelRasterRenderer#getSharedPool()}. Background
+	 * work that must not compete with foreground renders for the processors clears it, so that each frame is rendered
+	 * on the calling thread only.
+	 * 
+	 * @param parallelRendering false to render on the calling thread
+	 */
+	public synchronized void setParallelRendering(boolean parallelRendering)
+	{
+		this.parallelRendering = parallelRendering;
+	}
+
+	/**
+	 * Get the position and length of each frame of PixelData.
+	 * <p>
+	 * The index is built on first access to the file, by computing the positions of native frames or by walking the
+	 * items of encapsulated PixelData, and kept in {@link FrameOffsetIndexCache}; if
+	 * {@link #setPersistFrameIndex(boolean)} is set, it is also read from and written to a file next to the DICOM file.
+	 * </p>
+	 * 
+	 * @return index, or null if the file has no PixelData
+	 * @throws IOException
+	 */
+	public synchronized FrameOffsetIndex getFrameOffsetIndex() throws IOException
+	{
+		boolean opened = openHandle();
+		try {
+			if (frameIndex != null || pixelDataOffset < 0)
+				return frameIndex;
+			FrameOffsetIndexCache indexCache = FrameOffsetIndexCache.getInstance();
+			frameIndex = indexCache.getIndex(dicomFile);
+			if (frameIndex == null && persistFrameIndex)
+				frameIndex = FrameOffsetIndex.read(FrameOffsetIndex.getIndexFile(dicomFile), dicomFile);
+			if (frameIndex == null) {
+				frameIndex = buildFrameOffsetIndex();
+				if (persistFrameIndex) {
+					try {
+						frameIndex.write(FrameOffsetIndex.getIndexFile(dicomFile));
+					} catch (IOException e) {
+						log.warning("Error writing frame index of " + dicomFile.getName(), e);
+					}
+				}
+			}
+			indexCache.setIndex(dicomFile, frameIndex);
+			return frameIndex;
+		} finally {
+			release(opened);
+		}
+	}
+
+	/**
+	 * Read the PixelData of a frame with one positioned read, using the frame offset index.
+	 * 
+	 * @param frameValue frame number
+	 * @return native samples of the frame, or the concatenated fragments of an encapsulated frame
+	 * @throws IOException
+	 */
+	public synchronized ByteBuffer readFrameData(int frameValue) throws IOException
+	{
+		boolean opened = openHandle();
+		try {
+			FrameOffsetIndex index = getFrameOffsetIndex();
+			if (index == null)
+				throw new IOException("No PixelData in " + dicomFile.getName());
+			return index.readFrame(dicomHandle.getChannel(), frameValue);
+		} finally {
+			release(opened);
+		}
+	}
+
+	/**
+	 * Get the number of frames in the file.
+	 * 
+	 * @return number of frames
+	 * @throws IOException
+	 */
+	public synchronized int getNumberOfFrames() throws IOException
+	{
+		boolean opened = openHandle();
+		try {
+			return header.getInt(Tag.NumberOfFrames, 1);
+		} finally {
+			release(opened);
+		}
+	}
+
 	/**
 	 * Generate a buffered image using the parameters in the file.
 	 * 
@@ -156,22 +491,16 @@ public class DicomReader
 	 * @return image
 	 * @throws IOException
 	 */
-	public BufferedImage getImage(int frameValue) throws IOException
+	public synchronized BufferedImage getImage(int frameValue) throws IOException
 	{
-		FileImageInputStream fis = null;
-		BufferedImage image;
-
+		boolean opened = openHandle();
 		try {
-			fis = new FileImageInputStream(dicomFile);
-			DicomImageReader codec = (DicomImageReader)new DicomImageReaderSpi().createReaderInstance();
-			codec.setInput(fis);
-			DicomImageReadParam param = (DicomImageReadParam)codec.getDefaultReadParam();
-			image = codec.read(frameValue, param);
+			DicomImageReader reader = getCodec();
+			DicomImageReadParam param = (DicomImageReadParam)reader.getDefaultReadParam();
+			return reader.read(frameValue, param);
 		} finally {
-			if (fis != null)
-				fis.close();
+			release(opened);
 		}
-		return image;
 	}
 
 	/**
@@ -196,86 +525,406 @@ public class DicomReader
 	 */
 	public BufferedImage getPackedImage(int frameValue) throws IOException
 	{
-		FileImageInputStream fis = null;
-		DicomInputStream dis = null;
-		BufferedImage packedImage = null;
+		return getPackedImage(frameValue, RasterProcessor.PackedFormat.BGR);
+	}
 
+	/**
+	 * Generate a buffered image holding the full 16 bit PixelData value.
+	 * <p>
+	 * With {@link RasterProcessor.PackedFormat#BGR} the high order bits are in the red channel and the low order bits in
+	 * the green channel. With {@link RasterProcessor.PackedFormat#GRAY16} the value is in a single 16 bit channel and the
+	 * adjustment is in the {@link RasterProcessor#ADJUSTMENT_PROPERTY} image property.
+	 * </p>
+	 * <p>
+	 * The image is taken from {@link RasterImagePool}; once it has been written it may be handed back with
+	 * {@link #releasePackedImage(BufferedImage)} so that the next frame of the same size reuses it.
+	 * </p>
+	 * 
+	 * @param frameValue frame number
+	 * @param format layout of the image
+	 * @return image
+	 * @throws IOException
+	 */
+	public synchronized BufferedImage getPackedImage(int frameValue, RasterProcessor.PackedFormat format)
+			throws IOException
+	{
+		BufferedImage packedImage = getCachedImage(frameValue, format);
+		if (packedImage != null)
+			return packedImage;
+		boolean opened = openHandle();
 		try {
-			StopTagInputHandler stop = new StopTagInputHandler(Tag.PixelData);
-			log.info("" + Thread.currentThread().getId() + " Opening Dicom:" + dicomFile.getName());
-			dis = new DicomInputStream(dicomFile);
-			dis.setHandler(stop);
-			DicomObject object = dis.readDicomObject();
-			RasterProcessor rasterProcessor = new RasterProcessor(object);
-			dis.close();
-			fis = new FileImageInputStream(dicomFile);
-			DicomImageReader codec = (DicomImageReader)new DicomImageReaderSpi().createReaderInstance();
-			codec.setInput(fis);
-			DicomImageReadParam param = (DicomImageReadParam)codec.getDefaultReadParam();
-			Raster raster = codec.readRaster(frameValue, param);
-			packedImage = rasterProcessor.buildPng(raster);
+			ParallelRasterRenderer renderer = createRenderer(createRasterProcessor());
+			packedImage = renderPackedImage(renderer, readRaster(frameValue), format);
+			cacheImage(frameValue, format, packedImage);
+			return packedImage;
 		} finally {
-			IOUtils.closeQuietly(dis);
-			if (fis != null)
-				fis.close();
-			log.info("" + Thread.currentThread().getId() + " Closed");
+			release(opened);
 		}
-		return packedImage;
 	}
 
-	// See http://forums.dcm4che.org/jiveforums/message.jspa?messageID=21407 for various ways of reading a DICOM file.
-	public static String getPatientName(File dicomFile) throws IOException
+	/**
+	 * Return an image generated by {@link #getPackedImage(int, RasterProcessor.PackedFormat)} to the pool once it is no
+	 * longer used.
+	 * 
+	 * @param packedImage image
+	 */
+	public static void releasePackedImage(BufferedImage packedImage)
 	{
-		DicomInputStream dis = null;
-		String patientName = null;
+		RasterImagePool.getInstance().releaseImage(packedImage);
+	}
+
+	/**
+	 * Generate the packed images of all frames.
+	 * 
+	 * @param format layout of the images
+	 * @param handler receives the image of each frame
+	 * @return number of frames rendered
+	 * @throws IOException
+	 * @see #renderPackedImages(int, int, RasterProcessor.PackedFormat, FrameHandler)
+	 */
+	public int renderPackedImages(RasterProcessor.PackedFormat format, FrameHandler handler) throws IOException
+	{
+		return renderPackedImages(0, -1, format, handler);
+	}
+
+	/**
+	 * Generate the packed images of a range of frames.
+	 * <p>
+	 * The file is opened and its header parsed once for the whole range, and a single RasterProcessor is built from the
+	 * header. The images are taken from {@link RasterImagePool} and released after the handler has processed them, so
+	 * frames of the same size share an image.
+	 * </p>
+	 * 
+	 * @param firstFrame first frame rendered
+	 * @param endFrame frame following the last frame rendered, or -1 for all remaining frames
+	 * @param format layout of the images, see {@link #getPackedImage(int, RasterProcessor.PackedFormat)}
+	 * @param handler receives the image of each frame
+	 * @return number of frames rendered
+	 * @throws IOException
+	 */
+	public synchronized int renderPackedImages(int firstFrame, int endFrame, RasterProcessor.PackedFormat format,
+			FrameHandler handler) throws IOException
+	{
+		boolean opened = openHandle();
+		int frames = 0;
 
 		try {
-			log.info("" + Thread.currentThread().getId() + " Opening Dicom:" + dicomFile.getName());
-			dis = new DicomInputStream(dicomFile);
-			dis.setHandler(new StopTagInputHandler(Tag.PixelData));
-			DicomObject dicomObject = dis.readDicomObject();
-			patientName = dicomObject.getString(Tag.PatientName);
+			RasterProcessor rasterProcessor = createRasterProcessor();
+			ParallelRasterRenderer renderer = createRenderer(rasterProcessor);
+			int numberOfFrames = header.getInt(Tag.NumberOfFrames, 1);
+			if (endFrame < 0 || endFrame > numberOfFrames)
+				endFrame = numberOfFrames;
+			for (int frameValue = firstFrame; frameValue < endFrame; frameValue++) {
+				BufferedImage packedImage = getCachedImage(frameValue, format);
+				if (packedImage == null) {
+					packedImage = renderPackedImage(renderer, readRaster(frameValue), format);
+					cacheImage(frameValue, format, packedImage);
+				}
+				try {
+					handler.handleFrame(frameValue, packedImage);
+				} finally {
+					rasterProcessor.releaseImage(packedImage);
+				}
+				frames++;
+			}
 		} finally {
-			IOUtils.closeQuietly(dis);
-			log.info("" + Thread.currentThread().getId() + " Closed");
+			release(opened);
+			log.info("" + Thread.currentThread().getId() + " " + frames + " frames rendered");
 		}
-		return patientName;
+		return frames;
 	}
 
-	public static String getPatientID(File dicomFile) throws IOException
+	/**
+	 * Write the packed images of a range of frames to PNG files.
+	 * 
+	 * @param firstFrame first frame written
+	 * @param endFrame frame following the last frame written, or -1 for all remaining frames
+	 * @param format layout of the images
+	 * @param writer PNG writer
+	 * @param pngDirectory directory receiving the files
+	 * @param pngFilePattern format of the file names, with the frame number as argument, for example "%d.png"
+	 * @return number of frames written
+	 * @throws IOException
+	 */
+	public int writePackedPngs(int firstFrame, int endFrame, RasterProcessor.PackedFormat format,
+			final PackedPngWriter writer, final File pngDirectory, final String pngFilePattern) throws IOException
 	{
-		DicomInputStream dis = null;
-		String patientID = null;
+		return renderPackedImages(firstFrame, endFrame, format, new FrameHandler() {
+			@Override
+			public void handleFrame(int frameValue, BufferedImage packedImage) throws IOException
+			{
+				writer.write(packedImage, new File(pngDirectory, String.format(pngFilePattern, frameValue)));
+			}
+		});
+	}
 
+	/**
+	 * Read the raster of a frame.
+	 * <p>
+	 * Frames of uncompressed PixelData are read directly from the file at the offset found when parsing the header, so
+	 * the header is not parsed again. Encapsulated PixelData is decoded by a DicomImageReader reading from the same file
+	 * handle.
+	 * </p>
+	 * 
+	 * @param frameValue frame number
+	 * @return raster of the frame
+	 * @throws IOException
+	 */
+	protected synchronized Raster readRaster(int frameValue) throws IOException
+	{
+		boolean opened = openHandle();
 		try {
-			log.info("" + Thread.currentThread().getId() + " Opening Dicom:" + dicomFile.getName());
-			dis = new DicomInputStream(dicomFile);
-			dis.setHandler(new StopTagInputHandler(Tag.PixelData));
-			DicomObject dicomObject = dis.readDicomObject();
-			patientID = dicomObject.getString(Tag.PatientID);
+			if (memoryMapped && isDirectlyReadable()) {
+				return createMappedRaster(getFrameBuffer(frameValue));
+			} else if (isDirectlyReadable()) {
+				return readUncompressedRaster(frameValue);
+			}
+			DicomImageReader reader = getCodec();
+			return reader.readRaster(frameValue, reader.getDefaultReadParam());
 		} finally {
-			IOUtils.closeQuietly(dis);
-			log.info("" + Thread.currentThread().getId() + " Closed");
+			release(opened);
 		}
-		return patientID;
 	}
 
-	public static String getStudyIUID(File dicomFile) throws IOException
+	private RasterProcessor createRasterProcessor()
 	{
-		DicomInputStream dis = null;
-		String studyIUID = null;
+		RasterProcessor rasterProcessor = new RasterProcessor(header);
+		rasterProcessor.setUseLookupTables(true);
+		rasterProcessor.setImagePool(RasterImagePool.getInstance());
+		return rasterProcessor;
+	}
+
+	private ParallelRasterRenderer createRenderer(RasterProcessor rasterProcessor)
+	{
+		ParallelRasterRenderer renderer = new ParallelRasterRenderer(rasterProcessor);
+		if (!parallelRendering)
+			renderer.setParallelThreshold(Integer.MAX_VALUE);
+		return renderer;
+	}
+
+	private BufferedImage getCachedImage(int frameValue, RasterProcessor.PackedFormat format) throws IOException
+	{
+		if (frameCache == null)
+			return null;
+		return frameCache.get(dicomFile, frameValue, format.name());
+	}
+
+	private void cacheImage(int frameValue, RasterProcessor.PackedFormat format, BufferedImage packedImage)
+			throws IOException
+	{
+		if (frameCache != null)
+			frameCache.put(dicomFile, frameValue, format.name(), packedImage);
+	}
+
+	private BufferedImage renderPackedImage(ParallelRasterRenderer renderer, Raster raster,
+			RasterProcessor.PackedFormat format)
+	{
+		if (format == RasterProcessor.PackedFormat.GRAY16)
+			return renderer.buildGray16(raster);
+		else
+			return renderer.buildPng(raster);
+	}
+
+	/**
+	 * @return true if the frames are native grayscale data that can be read from the PixelData offset
+	 */
+	private boolean isDirectlyReadable()
+	{
+		if (pixelDataOffset < 0 || pixelDataLength < 0 || transferSyntax == null || transferSyntax.deflated()
+				|| !transferSyntax.uncompressed())
+			return false;
+		int bitsAllocated = header.getInt(Tag.BitsAllocated, 16);
+		return header.getInt(Tag.SamplesPerPixel, 1) == 1
+				&& (bitsAllocated == 16 || (bitsAllocated == 8 && !transferSyntax.bigEndian()));
+	}
+
+	/**
+	 * @return length in bytes of one frame of uncompressed PixelData
+	 * @throws IOException if the frame is beyond the end of PixelData
+	 */
+	private int getFrameLength(int frameValue) throws IOException
+	{
+		int frameLength = getNativeFrameLength();
+		if (frameValue < 0 || (long)frameValue * frameLength + frameLength > pixelDataLength)
+			throw new IOException("Frame " + frameValue + " is beyond the end of PixelData in " + dicomFile.getName());
+		return frameLength;
+	}
 
+	/**
+	 * Native frames follow each other without padding, so with one bit per pixel a frame only starts on a byte boundary
+	 * if its number of pixels is a multiple of eight.
+	 * 
+	 * @return length in bytes of one frame of native PixelData
+	 * @throws IOException if BitsAllocated is not 1, 8 or 16, or frames of one bit per pixel are not byte aligned
+	 */
+	private int getNativeFrameLength() throws IOException
+	{
+		int bitsAllocated = header.getInt(Tag.BitsAllocated, 16);
+		long samples = (long)header.getInt(Tag.Rows) * header.getInt(Tag.Columns) * header.getInt(Tag.SamplesPerPixel, 1);
+		if (bitsAllocated != 1 && bitsAllocated != 8 && bitsAllocated != 16)
+			throw new IOException("Unsupported BitsAllocated " + bitsAllocated + " in " + dicomFile.getName());
+		if (bitsAllocated == 1 && samples % 8 != 0)
+			throw new IOException("Frames of " + samples + " bits are not byte aligned in " + dicomFile.getName());
+		long frameLength = samples * bitsAllocated / 8;
+		if (frameLength > Integer.MAX_VALUE)
+			throw new IOException("Frames too large in " + dicomFile.getName());
+		return (int)frameLength;
+	}
+
+	private FrameOffsetIndex buildFrameOffsetIndex() throws IOException
+	{
+		if (pixelDataLength >= 0)
+			return FrameOffsetIndex.createNative(dicomFile, pixelDataOffset, pixelDataLength, getNativeFrameLength(),
+					header.getInt(Tag.NumberOfFrames, 1));
+		return FrameOffsetIndex.createEncapsulated(dicomFile, dicomHandle.getChannel(), pixelDataOffset,
+				header.getInt(Tag.NumberOfFrames, 1));
+	}
+
+	private Raster createMappedRaster(Buffer frame)
+	{
+		int rows = header.getInt(Tag.Rows);
+		int columns = header.getInt(Tag.Columns);
+		DataBuffer dataBuffer;
+		if (frame instanceof ShortBuffer)
+			dataBuffer = new MappedDataBuffer((ShortBuffer)frame, header.getInt(Tag.PixelRepresentation, 0) == 1);
+		else
+			dataBuffer = new MappedDataBuffer((ByteBuffer)frame);
+		SampleModel sampleModel = new PixelInterleavedSampleModel(dataBuffer.getDataType(), columns, rows, 1, columns,
+				new int[] { 0 });
+		return Raster.createRaster(sampleModel, dataBuffer, null);
+	}
+
+	private Raster readUncompressedRaster(int frameValue) throws IOException
+	{
+		int rows = header.getInt(Tag.Rows);
+		int columns = header.getInt(Tag.Columns);
+		int bitsAllocated = header.getInt(Tag.BitsAllocated, 16);
+		int pixels = rows * columns;
+		ByteBuffer buffer = getFrameOffsetIndex().readFrame(dicomHandle.getChannel(), frameValue);
+		DataBuffer dataBuffer;
+		if (bitsAllocated == 8) {
+			dataBuffer = new DataBufferByte(buffer.array(), pixels);
+		} else {
+			short[] samples = new short[pixels];
+			buffer.order(transferSyntax.bigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+			buffer.asShortBuffer().get(samples);
+			if (header.getInt(Tag.PixelRepresentation, 0) == 1)
+				dataBuffer = new DataBufferShort(samples, pixels);
+			else
+				dataBuffer = new DataBufferUShort(samples, pixels);
+		}
+		SampleModel sampleModel = new PixelInterleavedSampleModel(dataBuffer.getDataType(), columns, rows, 1, columns,
+				new int[] { 0 });
+		return Raster.createRaster(sampleModel, dataBuffer, null);
+	}
+
+	private DicomImageReader getCodec() throws IOException
+	{
+		if (codec == null) {
+			dicomHandle.seek(0);
+			codecInput = new FileImageInputStream(dicomHandle);
+			codec = DicomImageReaderPool.getInstance().acquire();
+			codec.setInput(codecInput);
+		}
+		return codec;
+	}
+
+	/**
+	 * Open the file and parse the header if this has not been done.
+	 * 
+	 * @return true if the handle was opened by this call and must be released by the caller
+	 * @throws IOException
+	 */
+	private boolean openHandle() throws IOException
+	{
+		if (dicomHandle != null)
+			return false;
+		log.info("" + Thread.currentThread().getId() + " Opening Dicom:" + dicomFile.getName());
+		dicomHandle = new RandomAccessFile(dicomFile, "r");
+		DicomInputStream dis = null;
 		try {
-			log.info("" + Thread.currentThread().getId() + " Opening Dicom:" + dicomFile.getName());
-			dis = new DicomInputStream(dicomFile);
+			InputStream in = new BufferedInputStream(Channels.newInputStream(dicomHandle.getChannel()));
+			dis = new DicomInputStream(in);
 			dis.setHandler(new StopTagInputHandler(Tag.PixelData));
-			DicomObject dicomObject = dis.readDicomObject();
-			studyIUID = dicomObject.getString(Tag.StudyInstanceUID);
-		} finally {
-			IOUtils.closeQuietly(dis);
+			header = dis.readDicomObject();
+			transferSyntax = dis.getTransferSyntax();
+			if (dis.tag() == Tag.PixelData) {
+				pixelDataOffset = dis.getStreamPosition();
+				pixelDataLength = dis.valueLength();
+			} else {
+				pixelDataOffset = -1;
+				pixelDataLength = -1;
+			}
+		} catch (IOException e) {
+			closeHandle();
+			throw e;
+		} catch (RuntimeException e) {
+			closeHandle();
+			throw e;
+		}
+		return true;
+	}
+
+	private void release(boolean opened)
+	{
+		if (opened && !keepOpen)
+			closeHandle();
+	}
+
+	private void closeHandle()
+	{
+		if (codec != null) {
+			DicomImageReaderPool.getInstance().release(codec);
+			codec = null;
+		}
+		codecInput = null;
+		mappedPixelData = null;
+		frameIndex = null;
+		if (dicomHandle != null) {
+			IOUtils.closeQuietly(dicomHandle);
+			dicomHandle = null;
 			log.info("" + Thread.currentThread().getId() + " Closed");
 		}
-		return studyIUID;
+		header = null;
+		transferSyntax = null;
+		pixelDataOffset = -1;
+		pixelDataLength = -1;
+	}
+
+	/**
+	 * Get a summary of the header of a file.
+	 * <p>
+	 * Callers needing several attributes of the same file should use this, or {@link DicomHeaderSummary#readAll}
+	 * for a list of files, instead of calling the static getters below one after the other, since each of those reads
+	 * the file.
+	 * </p>
+	 * 
+	 * @param dicomFile DICOM file
+	 * @param tags tags to be kept, or none for {@link DicomHeaderSummary#DEFAULT_TAGS}
+	 * @return summary
+	 * @throws IOException
+	 */
+	public static DicomHeaderSummary getHeaderSummary(File dicomFile, int... tags) throws IOException
+	{
+		if (tags.length == 0)
+			return DicomHeaderSummary.read(dicomFile);
+		return DicomHeaderSummary.read(dicomFile, tags);
+	}
+
+	// See http://forums.dcm4che.org/jiveforums/message.jspa?messageID=21407 for various ways of reading a DICOM file.
+	public static String getPatientName(File dicomFile) throws IOException
+	{
+		return DicomHeaderSummary.read(dicomFile, Tag.PatientName).getString(Tag.PatientName);
+	}
+
+	public static String getPatientID(File dicomFile) throws IOException
+	{
+		return DicomHeaderSummary.read(dicomFile, Tag.PatientID).getString(Tag.PatientID);
+	}
+
+	public static String getStudyIUID(File dicomFile) throws IOException
+	{
+		return DicomHeaderSummary.read(dicomFile, Tag.StudyInstanceUID).getString(Tag.StudyInstanceUID);
 	}
 	
 	public static DicomObject getDicomObject(File dicomFile) throws IOException
@@ -298,20 +947,7 @@ public class DicomReader
 	
 	public static String getModality(File dicomFile) throws IOException
 	{
-		DicomInputStream dis = null;
-		String modality = null;
-
-		try {
-			log.info("" + Thread.currentThread().getId() + " Opening Dicom:" + dicomFile.getName());
-			dis = new DicomInputStream(dicomFile);
-			dis.setHandler(new StopTagInputHandler(Tag.PixelData));
-			DicomObject dicomObject = dis.readDicomObject();
-			modality = dicomObject.getString(Tag.Modality);
-		} finally {
-			IOUtils.closeQuietly(dis);
-			log.info("" + Thread.currentThread().getId() + " Closed");
-		}
-		return modality;
+		return DicomHeaderSummary.read(dicomFile, Tag.Modality).getString(Tag.Modality);
 	}
 	
 	/*
@@ -0,0 +1,443 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.common.dicom;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Position and length of each frame of PixelData in a DICOM file.
+ * <p>
+ * For native PixelData the frames follow each other and their positions are computed from the frame length. For
+ * encapsulated PixelData the fragment items are walked once: frames are located with the Basic Offset Table when it is
+ * present, and otherwise by assuming one fragment per frame, or, when there are more fragments than frames, by the JPEG
+ * or JPEG 2000 start marker at the beginning of each frame. An encapsulated frame is recorded as the span from the item
+ * header of its first fragment to the end of its last fragment, so that it can be read with one positioned read, and
+ * the item headers are removed by {@link #readFrame(FileChannel, int)}.
+ * </p>
+ * <p>
+ * An index can be written to a file with {@link #write(File)}. It records the length and modification time of the
+ * DICOM file, and {@link #read(File, File)} only accepts an index that matches them.
+ * </p>
+ */
+public final class FrameOffsetIndex
+{
+	private static final int MAGIC = 0x46524d49;
+	/**
+	 * Version 1 indexes of native PixelData took the number of frames from the length of PixelData, which is wrong for
+	 * frames of one bit per pixel, and are rebuilt.
+	 */
+	private static final int VERSION = 2;
+	private static final int ITEM = 0xfffee000;
+	private static final int SEQUENCE_DELIMITATION_ITEM = 0xfffee0dd;
+
+	/**
+	 * Suffix of the file holding the index of a DICOM file, see {@link #getIndexFile(File)}.
+	 */
+	public static final String INDEX_FILE_SUFFIX = ".frames";
+
+	private final long fileLength;
+	private final long lastModified;
+	private final boolean encapsulated;
+	private final long[] offsets;
+	private final int[] lengths;
+
+	private FrameOffsetIndex(long fileLength, long lastModified, boolean encapsulated, long[] offsets, int[] lengths)
+	{
+		this.fileLength = fileLength;
+		this.lastModified = lastModified;
+		this.encapsulated = encapsulated;
+		this.offsets = offsets;
+		this.lengths = lengths;
+	}
+
+	/**
+	 * Build the index of native PixelData.
+	 * 
+	 * @param dicomFile DICOM file
+	 * @param pixelDataOffset position of the PixelData value
+	 * @param pixelDataLength length of the PixelData value
+	 * @param frameLength length in bytes of one frame
+	 * @param numberOfFrames number of frames in the file
+	 * @return index
+	 * @throws IOException if PixelData is shorter than the frames
+	 */
+	public static FrameOffsetIndex createNative(File dicomFile, long pixelDataOffset, int pixelDataLength,
+			int frameLength, int numberOfFrames) throws IOException
+	{
+		if (numberOfFrames < 0 || (long)numberOfFrames * frameLength > pixelDataLength)
+			throw new IOException("PixelData of " + dicomFile.getName() + " is shorter than " + numberOfFrames
+					+ " frames of " + frameLength + " bytes");
+		long[] offsets = new long[numberOfFrames];
+		int[] lengths = new int[numberOfFrames];
+		for (int frameValue = 0; frameValue < numberOfFrames; frameValue++) {
+			offsets[frameValue] = pixelDataOffset + (long)frameValue * frameLength;
+			lengths[frameValue] = frameLength;
+		}
+		return new FrameOffsetIndex(dicomFile.length(), dicomFile.lastModified(), false, offsets, lengths);
+	}
+
+	/**
+	 * Build the index of encapsulated PixelData by walking its items.
+	 * 
+	 * @param dicomFile DICOM file
+	 * @param channel channel open on the file
+	 * @param pixelDataOffset position of the first item, the Basic Offset Table
+	 * @param numberOfFrames number of frames in the file
+	 * @return index
+	 * @throws IOException if the items are malformed or the frames cannot be located
+	 */
+	public static FrameOffsetIndex createEncapsulated(File dicomFile, FileChannel channel, long pixelDataOffset,
+			int numberOfFrames) throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		long position = pixelDataOffset;
+
+		readFully(channel, header, position);
+		if (getTag(header) != ITEM)
+			throw new IOException("Missing Basic Offset Table in " + dicomFile.getName());
+		int tableLength = header.getInt(4);
+		long[] table = new long[tableLength / 4];
+		if (tableLength > 0) {
+			ByteBuffer tableBuffer = ByteBuffer.allocate(tableLength).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, tableBuffer, position + 8);
+			for (int i = 0; i < table.length; i++) {
+				table[i] = tableBuffer.getInt(4 * i) & 0xffffffffL;
+			}
+		}
+		position += 8 + tableLength;
+
+		List<long[]> fragments = new ArrayList<long[]>();
+		long end = channel.size();
+		while (position + 8 <= end) {
+			readFully(channel, header, position);
+			int tag = getTag(header);
+			if (tag == SEQUENCE_DELIMITATION_ITEM)
+				break;
+			if (tag != ITEM)
+				throw new IOException("Unexpected tag in PixelData of " + dicomFile.getName());
+			long length = header.getInt(4) & 0xffffffffL;
+			fragments.add(new long[] { position, length });
+			position += 8 + length;
+		}
+
+		boolean[] frameStarts = new boolean[fragments.size()];
+		long firstFragment = fragments.isEmpty() ? position : fragments.get(0)[0];
+		if (table.length == numberOfFrames && numberOfFrames > 0) {
+			int frameValue = 0;
+			for (int i = 0; i < fragments.size() && frameValue < table.length; i++) {
+				if (fragments.get(i)[0] - firstFragment == table[frameValue]) {
+					frameStarts[i] = true;
+					frameValue++;
+				}
+			}
+		} else if (fragments.size() == numberOfFrames || numberOfFrames == 1) {
+			for (int i = 0; i < frameStarts.length; i++) {
+				frameStarts[i] = numberOfFrames > 1 || i == 0;
+			}
+		} else {
+			ByteBuffer marker = ByteBuffer.allocate(2);
+			for (int i = 0; i < fragments.size(); i++) {
+				if (fragments.get(i)[1] < 2)
+					continue;
+				readFully(channel, marker, fragments.get(i)[0] + 8);
+				int code = ((marker.get(0) & 0xff) << 8) | (marker.get(1) & 0xff);
+				frameStarts[i] = code == 0xffd8 || code == 0xff4f;
+			}
+		}
+
+		long[] offsets = new long[numberOfFrames];
+		int[] lengths = new int[numberOfFrames];
+		int frameValue = -1;
+		for (int i = 0; i < fragments.size(); i++) {
+			long[] fragment = fragments.get(i);
+			if (frameStarts[i] && ++frameValue < numberOfFrames)
+				offsets[frameValue] = fragment[0];
+			if (frameValue >= 0 && frameValue < numberOfFrames) {
+				long length = fragment[0] + 8 + fragment[1] - offsets[frameValue];
+				if (length > Integer.MAX_VALUE)
+					throw new IOException("Frame " + frameValue + " of " + dicomFile.getName() + " is too long");
+				lengths[frameValue] = (int)length;
+			}
+		}
+		if (frameValue != numberOfFrames - 1)
+			throw new IOException("Found " + (frameValue + 1) + " of " + numberOfFrames + " frames in "
+					+ dicomFile.getName());
+		return new FrameOffsetIndex(dicomFile.length(), dicomFile.lastModified(), true, offsets, lengths);
+	}
+
+	public int getNumberOfFrames()
+	{
+		return offsets.length;
+	}
+
+	/**
+	 * @return true if the frames are fragments of encapsulated PixelData
+	 */
+	public boolean isEncapsulated()
+	{
+		return encapsulated;
+	}
+
+	/**
+	 * @param frameValue frame number
+	 * @return position in the file of the frame, or of the item header of its first fragment
+	 */
+	public long getOffset(int frameValue)
+	{
+		return offsets[frameValue];
+	}
+
+	/**
+	 * @param frameValue frame number
+	 * @return number of bytes read for the frame, including the item headers of encapsulated frames
+	 */
+	public int getLength(int frameValue)
+	{
+		return lengths[frameValue];
+	}
+
+	/**
+	 * @param dicomFile DICOM file
+	 * @return true if the file has the length and modification time it had when the index was built
+	 */
+	public boolean isCurrent(File dicomFile)
+	{
+		return dicomFile.length() == fileLength && dicomFile.lastModified() == lastModified;
+	}
+
+	/**
+	 * Read the data of a frame with one positioned read.
+	 * 
+	 * @param channel channel open on the DICOM file
+	 * @param frameValue frame number
+	 * @return frame data; for encapsulated PixelData, the concatenated fragments of the frame
+	 * @throws IOException
+	 */
+	public ByteBuffer readFrame(FileChannel channel, int frameValue) throws IOException
+	{
+		if (frameValue < 0 || frameValue >= offsets.length)
+			throw new IOException("Frame " + frameValue + " is not in the index");
+		ByteBuffer buffer = ByteBuffer.allocate(lengths[frameValue]);
+		readFully(channel, buffer, offsets[frameValue]);
+		if (!encapsulated)
+			return buffer;
+
+		byte[] data = buffer.array();
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		int source = 0;
+		int destination = 0;
+		while (source + 8 <= data.length) {
+			int length = buffer.getInt(source + 4);
+			if (length < 0 || length > data.length - source - 8)
+				throw new IOException("Malformed fragment in frame " + frameValue);
+			System.arraycopy(data, source + 8, data, destination, length);
+			destination += length;
+			source += 8 + length;
+		}
+		return ByteBuffer.wrap(data, 0, destination).slice();
+	}
+
+	/**
+	 * @param dicomFile DICOM file
+	 * @return file holding the index of the DICOM file, next to it
+	 */
+	public static File getIndexFile(File dicomFile)
+	{
+		return new File(dicomFile.getPath() + INDEX_FILE_SUFFIX);
+	}
+
+	/**
+	 * Write the index to a file.
+	 * 
+	 * @param indexFile index file
+	 * @throws IOException
+	 */
+	public void write(File indexFile) throws IOException
+	{
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(fileLength);
+			out.writeLong(lastModified);
+			out.writeBoolean(encapsulated);
+			out.writeInt(offsets.length);
+			for (int frameValue = 0; frameValue < offsets.length; frameValue++) {
+				out.writeLong(offsets[frameValue]);
+				out.writeInt(lengths[frameValue]);
+			}
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	/**
+	 * Read an index written by {@link #write(File)}.
+	 * 
+	 * @param indexFile index file
+	 * @param dicomFile DICOM file the index was built for
+	 * @return index, or null if the file does not hold an index or the DICOM file has changed since it was written
+	 * @throws IOException
+	 */
+	public static FrameOffsetIndex read(File indexFile, File dicomFile) throws IOException
+	{
+		if (!indexFile.isFile())
+			return null;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return null;
+			long fileLength = in.readLong();
+			long lastModified = in.readLong();
+			if (fileLength != dicomFile.length() || lastModified != dicomFile.lastModified())
+				return null;
+			boolean encapsulated = in.readBoolean();
+			int numberOfFrames = in.readInt();
+			long[] offsets = new long[numberOfFrames];
+			int[] lengths = new int[numberOfFrames];
+			for (int frameValue = 0; frameValue < numberOfFrames; frameValue++) {
+				offsets[frameValue] = in.readLong();
+				lengths[frameValue] = in.readInt();
+			}
+			return new FrameOffsetIndex(fileLength, lastModified, encapsulated, offsets, lengths);
+		} catch (EOFException e) {
+			return null;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	private static int getTag(ByteBuffer header)
+	{
+		return ((header.getShort(0) & 0xffff) << 16) | (header.getShort(2) & 0xffff);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+	{
+		buffer.clear();
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException("Unexpected end of PixelData");
+		}
+		buffer.flip();
+	}
+}
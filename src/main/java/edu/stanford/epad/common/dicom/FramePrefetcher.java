@@ -0,0 +1,491 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.common.dicom;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.stanford.epad.common.util.EPADLogger;
+
+/**
+ * Renders the frames that are likely to be requested next into a {@link DecodedFrameCache}.
+ * <p>
+ * Callers report each frame requested by a viewer with
+ * {@link #accessed(String, List, int, RasterProcessor.PackedFormat)} for a series of single-frame files, or
+ * {@link #accessed(File, int, int, RasterProcessor.PackedFormat)} for a multi-frame file. The prefetcher keeps the last
+ * position and direction of each series. While the viewer steps through the series in one direction, it renders the
+ * following frames in that direction in the background; the number of frames rendered ahead starts at
+ * {@link #MINIMUM_DEPTH} and doubles with each sequential step up to the maximum depth. When the viewer jumps elsewhere
+ * or turns round, the queued renders of the series are cancelled and the depth starts again from the minimum.
+ * </p>
+ * <p>
+ * Renders run on a small pool of low-priority daemon threads with a bounded queue; when the queue is full further
+ * prefetches are dropped, so prefetching never holds up foreground requests. Each frame is rendered on its prefetch
+ * thread alone, never split across {@link ParallelRasterRenderer#getSharedPool()}, so the number of threads caps the
+ * processors used by prefetching and not just the number of renders in progress. Frames are rendered through a
+ * {@link FrameRenderCoalescer} over the cache, and a foreground request for a frame that is being prefetched should be
+ * made through the same coalescer, from {@link #getCoalescer()}, so that it waits for that render rather than repeating
+ * it.
+ * </p>
+ */
+public class FramePrefetcher
+{
+	private static final EPADLogger log = EPADLogger.getInstance();
+
+	/**
+	 * Number of frames rendered ahead after the first sequential step.
+	 */
+	public static final int MINIMUM_DEPTH = 2;
+	public static final int DEFAULT_MAXIMUM_DEPTH = 16;
+	public static final int DEFAULT_MAXIMUM_QUEUED = 64;
+	/**
+	 * Number of series whose position is kept.
+	 */
+	private static final int MAXIMUM_SERIES = 256;
+
+	private static FramePrefetcher ourInstance = new FramePrefetcher(DecodedFrameCache.getInstance(),
+			Math.max(1, Runtime.getRuntime().availableProcessors() / 4), DEFAULT_MAXIMUM_QUEUED, DEFAULT_MAXIMUM_DEPTH);
+
+	private final DecodedFrameCache frameCache;
+	private final FrameRenderCoalescer coalescer;
+	private final ThreadPoolExecutor executor;
+	private final int maximumDepth;
+	private final Map<String, SeriesState> seriesMap = new LinkedHashMap<String, SeriesState>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, SeriesState> eldest)
+		{
+			if (size() > MAXIMUM_SERIES) {
+				eldest.getValue().cancel();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	private final AtomicLong scheduled = new AtomicLong();
+	private final AtomicLong rendered = new AtomicLong();
+	private final AtomicLong cancelled = new AtomicLong();
+
+	public static FramePrefetcher getInstance()
+	{
+		return ourInstance;
+	}
+
+	/**
+	 * @param frameCache cache receiving the prefetched frames
+	 * @param threads number of background threads, which is also the number of processors prefetching may use
+	 * @param maximumQueued maximum number of prefetches waiting for a thread
+	 * @param maximumDepth maximum number of frames rendered ahead of the viewer in a series
+	 */
+	public FramePrefetcher(DecodedFrameCache frameCache, int threads, int maximumQueued, int maximumDepth)
+	{
+		this.frameCache = frameCache;
+		this.coalescer = new FrameRenderCoalescer(FrameRenderCoalescer.DEFAULT_TIMEOUT_MILLISECONDS, frameCache);
+		this.maximumDepth = Math.max(MINIMUM_DEPTH, maximumDepth);
+		this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(maximumQueued), new PrefetchThreadFactory(),
+				new ThreadPoolExecutor.DiscardPolicy());
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	public DecodedFrameCache getFrameCache()
+	{
+		return frameCache;
+	}
+
+	/**
+	 * @return coalescer rendering the prefetched frames, through which foreground requests should be made
+	 */
+	public FrameRenderCoalescer getCoalescer()
+	{
+		return coalescer;
+	}
+
+	/**
+	 * @return number of frame renders queued
+	 */
+	public long getScheduled()
+	{
+		return scheduled.get();
+	}
+
+	/**
+	 * @return number of frames rendered into the cache
+	 */
+	public long getRendered()
+	{
+		return rendered.get();
+	}
+
+	/**
+	 * @return number of queued renders cancelled because the viewer moved elsewhere
+	 */
+	public long getCancelled()
+	{
+		return cancelled.get();
+	}
+
+	/**
+	 * Report the frame of a series of single-frame files requested by a viewer.
+	 * 
+	 * @param seriesUID identifier of the series
+	 * @param seriesFiles files of the series, in viewing order
+	 * @param position index of the requested file in the list
+	 * @param format layout of the images
+	 */
+	public void accessed(String seriesUID, List<File> seriesFiles, int position, RasterProcessor.PackedFormat format)
+	{
+		accessed(seriesUID, new FileSequence(seriesFiles), position, format);
+	}
+
+	/**
+	 * Report the frame of a multi-frame file requested by a viewer.
+	 * 
+	 * @param dicomFile multi-frame file
+	 * @param frameValue requested frame
+	 * @param numberOfFrames number of frames in the file
+	 * @param format layout of the images
+	 */
+	public void accessed(File dicomFile, int frameValue, int numberOfFrames, RasterProcessor.PackedFormat format)
+	{
+		accessed(dicomFile.getAbsolutePath(), new FrameSequence(dicomFile, numberOfFrames), frameValue, format);
+	}
+
+	/**
+	 * Cancel the queued renders of a series, for example when its viewer is closed.
+	 * 
+	 * @param seriesUID identifier of the series, or path of a multi-frame file
+	 */
+	public synchronized void cancel(String seriesUID)
+	{
+		SeriesState state = seriesMap.remove(seriesUID);
+		if (state != null)
+			state.cancel();
+	}
+
+	/**
+	 * Cancel all queued renders and stop the background threads.
+	 */
+	public synchronized void shutdown()
+	{
+		for (SeriesState state : seriesMap.values())
+			state.cancel();
+		seriesMap.clear();
+		executor.shutdown();
+	}
+
+	private synchronized void accessed(String seriesKey, Sequence sequence, int position,
+			RasterProcessor.PackedFormat format)
+	{
+		SeriesState state = seriesMap.get(seriesKey);
+		if (state == null || state.format != format) {
+			if (state != null)
+				state.cancel();
+			state = new SeriesState(format);
+			seriesMap.put(seriesKey, state);
+		}
+
+		int step = position - state.lastPosition;
+		if (state.lastPosition < 0 || (step != 0 && step != 1 && step != -1)) {
+			// First request or jump: cancel what was queued and wait for the direction of the next step.
+			state.cancel();
+			state.direction = 0;
+			state.depth = MINIMUM_DEPTH;
+			state.lastPosition = position;
+			state.scheduledTo = position;
+			return;
+		} else if (step == 0) {
+			return;
+		} else if (step == state.direction) {
+			state.depth = Math.min(maximumDepth, state.depth * 2);
+		} else {
+			state.cancel();
+			state.direction = step;
+			state.depth = MINIMUM_DEPTH;
+			state.scheduledTo = position;
+		}
+		state.lastPosition = position;
+		state.purge();
+
+		int last = Math.max(0, Math.min(sequence.size() - 1, position + state.direction * state.depth));
+		int next = (state.direction > 0 ? Math.max(position, state.scheduledTo) : Math.min(position, state.scheduledTo))
+				+ state.direction;
+		while ((next - last) * state.direction <= 0 && executor.getQueue().remainingCapacity() > 0) {
+			state.futures.add(executor.submit(new Prefetch(sequence.getFile(next), sequence.getFrame(next), format)));
+			scheduled.incrementAndGet();
+			state.scheduledTo = next;
+			next += state.direction;
+		}
+	}
+
+	/**
+	 * Render of one frame into the cache.
+	 */
+	private class Prefetch implements Runnable
+	{
+		private final File dicomFile;
+		private final int frameValue;
+		private final RasterProcessor.PackedFormat format;
+
+		Prefetch(File dicomFile, int frameValue, RasterProcessor.PackedFormat format)
+		{
+			this.dicomFile = dicomFile;
+			this.frameValue = frameValue;
+			this.format = format;
+		}
+
+		@Override
+		public void run()
+		{
+			try {
+				if (frameCache.contains(dicomFile, frameValue, format.name()))
+					return;
+				BufferedImage packedImage = coalescer.getPackedImage(dicomFile, frameValue, format, false);
+				DicomReader.releasePackedImage(packedImage);
+				rendered.incrementAndGet();
+			} catch (IOException e) {
+				log.warning("Error prefetching frame " + frameValue + " of " + dicomFile.getName(), e);
+			} catch (RuntimeException e) {
+				log.warning("Error prefetching frame " + frameValue + " of " + dicomFile.getName(), e);
+			}
+		}
+	}
+
+	/**
+	 * Position, direction and queued renders of a series.
+	 */
+	private class SeriesState
+	{
+		final RasterProcessor.PackedFormat format;
+		final List<Future<?>> futures = new ArrayList<Future<?>>();
+		int lastPosition = -1;
+		int direction = 0;
+		int depth = MINIMUM_DEPTH;
+		int scheduledTo = -1;
+
+		SeriesState(RasterProcessor.PackedFormat format)
+		{
+			this.format = format;
+		}
+
+		void cancel()
+		{
+			for (Future<?> future : futures) {
+				if (future.cancel(false))
+					cancelled.incrementAndGet();
+			}
+			futures.clear();
+			executor.purge();
+		}
+
+		void purge()
+		{
+			Iterator<Future<?>> iterator = futures.iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().isDone())
+					iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Frames of a series, each identified by a file and a frame number.
+	 */
+	private interface Sequence
+	{
+		int size();
+
+		File getFile(int position);
+
+		int getFrame(int position);
+	}
+
+	private static class FileSequence implements Sequence
+	{
+		private final List<File> files;
+
+		FileSequence(List<File> files)
+		{
+			this.files = files;
+		}
+
+		@Override
+		public int size()
+		{
+			return files.size();
+		}
+
+		@Override
+		public File getFile(int position)
+		{
+			return files.get(position);
+		}
+
+		@Override
+		public int getFrame(int position)
+		{
+			return 0;
+		}
+	}
+
+	private static class FrameSequence implements Sequence
+	{
+		private final File dicomFile;
+		private final int numberOfFrames;
+
+		FrameSequence(File dicomFile, int numberOfFrames)
+		{
+			this.dicomFile = dicomFile;
+			this.numberOfFrames = numberOfFrames;
+		}
+
+		@Override
+		public int size()
+		{
+			return numberOfFrames;
+		}
+
+		@Override
+		public File getFile(int position)
+		{
+			return dicomFile;
+		}
+
+		@Override
+		public int getFrame(int position)
+		{
+			return position;
+		}
+	}
+
+	private static class PrefetchThreadFactory implements ThreadFactory
+	{
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "FramePrefetcher-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	}
+}
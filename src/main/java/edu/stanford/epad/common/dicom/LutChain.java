@@ -0,0 +1,355 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.common.dicom;
+
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+
+import edu.stanford.epad.common.util.EPADLogger;
+
+/**
+ * Compiled chain of the modality, VOI and presentation LUTs of a Dicom object.
+ * <p>
+ * The stages are applied as described in part 3, C.11 of the standard:
+ * </p>
+ * <ul>
+ * <li>Modality LUT: the {@link Tag#LUTData} of the {@link Tag#ModalityLUTSequence} if present, otherwise
+ * {@link Tag#RescaleSlope} and {@link Tag#RescaleIntercept}.</li>
+ * <li>VOI LUT: the {@link Tag#LUTData} of the {@link Tag#VOILUTSequence} if present, otherwise the window with the
+ * LINEAR, LINEAR_EXACT or SIGMOID {@link Tag#VOILUTFunction}.</li>
+ * <li>Presentation LUT: the {@link Tag#LUTData} of the {@link Tag#PresentationLUTSequence} if present, otherwise the
+ * IDENTITY or INVERSE {@link Tag#PresentationLUTShape}.</li>
+ * </ul>
+ * <p>
+ * {@link #compile()} evaluates the chain once for every stored value and spreads the result over a table indexed by
+ * the low 16 bits of the PixelData value, so a frame is displayed with a single table lookup per pixel.
+ * </p>
+ */
+public class LutChain
+{
+	private static final EPADLogger log = EPADLogger.getInstance();
+
+	/**
+	 * Values of {@link Tag#VOILUTFunction}.
+	 */
+	public enum VoiFunction {
+		LINEAR, LINEAR_EXACT, SIGMOID
+	}
+
+	private final RasterProcessor processor;
+
+	/**
+	 * @param processor processor holding the parsed LUTs and the window
+	 */
+	public LutChain(RasterProcessor processor)
+	{
+		this.processor = processor;
+	}
+
+	/**
+	 * Determine whether a Dicom object carries anything that the linear rescale and window of {@link RasterProcessor}
+	 * does not cover.
+	 * 
+	 * @param processor processor holding the parsed LUTs
+	 * @return true if the chain is needed to display the object
+	 */
+	public static boolean isRequired(RasterProcessor processor)
+	{
+		return (processor.mLUT != null && processor.mLUT.lookupTable != null)
+				|| (processor.vLUT != null
+						&& (processor.vLUT.lookupTable != null || processor.vLUT.voiFunction != VoiFunction.LINEAR))
+				|| (processor.pLUT != null && (processor.pLUT.lookupTable != null || processor.pLUT.inverse));
+	}
+
+	/**
+	 * @return true if the modality stage is a lookup table rather than a linear rescale
+	 */
+	public boolean hasModalityTable()
+	{
+		return processor.mLUT != null && processor.mLUT.lookupTable != null;
+	}
+
+	/**
+	 * @return true if the VOI stage is a lookup table, in which case no window is needed
+	 */
+	public boolean hasVoiTable()
+	{
+		return processor.vLUT != null && processor.vLUT.lookupTable != null;
+	}
+
+	/**
+	 * Apply the modality stage.
+	 * 
+	 * @param value PixelData value as returned by {@link RasterProcessor#dataValue(int)}
+	 * @return modality value
+	 */
+	public float modalityValue(int value)
+	{
+		int stored = value - processor.adjustment;
+		if (hasModalityTable()) {
+			return processor.mLUT.lookupTable.lookup(stored);
+		}
+		return processor.rescaleSlope * stored + processor.rescaleIntercept;
+	}
+
+	/**
+	 * Apply the VOI and presentation stages.
+	 * 
+	 * @param modality modality value
+	 * @return displayed gray level from 0 to 255
+	 */
+	public int displayValue(float modality)
+	{
+		double voi;
+		if (hasVoiTable()) {
+			LookupTable table = processor.vLUT.lookupTable;
+			voi = (double)table.lookup((int)Math.floor(modality)) / table.getMaximumOutput();
+		} else {
+			double center = processor.windowCenter[0];
+			double width = processor.windowWidth[0];
+			VoiFunction function = processor.vLUT == null ? VoiFunction.LINEAR : processor.vLUT.voiFunction;
+			switch (function) {
+				case SIGMOID:
+					voi = 1.0 / (1.0 + Math.exp(-4.0 * (modality - center) / Math.max(width, Float.MIN_VALUE)));
+					break;
+				case LINEAR_EXACT:
+					voi = (modality - center) / Math.max(width, Float.MIN_VALUE) + 0.5;
+					break;
+				default:
+					if (width <= 1.0) {
+						voi = modality < center - 0.5 ? 0.0 : 1.0;
+					} else {
+						voi = (modality - (center - 0.5)) / (width - 1.0) + 0.5;
+					}
+			}
+			voi = Math.max(0.0, Math.min(1.0, voi));
+		}
+		double presentation = voi;
+		if (processor.pLUT != null) {
+			if (processor.pLUT.lookupTable != null) {
+				LookupTable table = processor.pLUT.lookupTable;
+				int index = table.getFirst() + (int)Math.round(voi * (table.getSize() - 1));
+				presentation = (double)table.lookup(index) / table.getMaximumOutput();
+			} else if (processor.pLUT.inverse) {
+				presentation = 1.0 - voi;
+			}
+		}
+		return (int)Math.round(Math.max(0.0, Math.min(1.0, presentation)) * 255.0);
+	}
+
+	/**
+	 * Compile the chain into a table for the current window.
+	 * 
+	 * @return table indexed by the low 16 bits of the PixelData value
+	 */
+	public byte[] compile()
+	{
+		int bitsStored = processor.bitsStored;
+		int values = bitsStored > 0 && bitsStored < 16 ? 1 << bitsStored : RasterLookupTableCache.TABLE_SIZE;
+		byte[] byValue = new byte[values];
+		for (int value = 0; value < values; value++) {
+			byValue[value] = (byte)displayValue(modalityValue(value));
+		}
+		byte[] table = new byte[RasterLookupTableCache.TABLE_SIZE];
+		for (int i = 0; i < table.length; i++) {
+			int value = processor.dataValue(i);
+			table[i] = byValue[value < 0 ? 0 : (value >= values ? values - 1 : value)];
+		}
+		return table;
+	}
+
+	/**
+	 * Lookup table read from the {@link Tag#LUTDescriptor} and {@link Tag#LUTData} of a LUT sequence item.
+	 */
+	public static class LookupTable
+	{
+		private final int size;
+		private final int first;
+		private final int bits;
+		private final int[] data;
+
+		private LookupTable(int size, int first, int bits, int[] data)
+		{
+			this.size = size;
+			this.first = first;
+			this.bits = bits;
+			this.data = data;
+		}
+
+		/**
+		 * Read the lookup table from an item of a LUT sequence.
+		 * 
+		 * @param item sequence item, may be null
+		 * @param signedFirst true if the first value mapped is to be interpreted as a signed 16 bit value: for a modality
+		 *          LUT when the pixels are signed, for VOI and presentation LUTs when the modality output is signed, as
+		 *          decided by {@link RasterProcessor#isModalityOutputSigned()}
+		 * @return table, or null if the item holds no usable table
+		 */
+		public static LookupTable read(DicomObject item, boolean signedFirst)
+		{
+			if (item == null || !item.containsValue(Tag.LUTDescriptor) || !item.containsValue(Tag.LUTData)) {
+				return null;
+			}
+			int[] descriptor = item.getInts(Tag.LUTDescriptor);
+			int[] lutData = item.getInts(Tag.LUTData);
+			if (descriptor == null || descriptor.length < 3 || lutData == null) {
+				log.warning("Invalid LUT descriptor or data");
+				return null;
+			}
+			int size = descriptor[0] == 0 ? 1 << 16 : descriptor[0] & 0xffff;
+			int first = descriptor[1];
+			if (signedFirst && first > Short.MAX_VALUE) {
+				first -= 1 << 16;
+			}
+			int bits = descriptor[2] < 1 || descriptor[2] > 16 ? 16 : descriptor[2];
+			int mask = (1 << bits) - 1;
+			int[] data = new int[size];
+			if (lutData.length >= size) {
+				for (int i = 0; i < size; i++) {
+					data[i] = lutData[i] & mask;
+				}
+			} else if (bits <= 8 && lutData.length * 2 >= size) {
+				// Eight bit entries packed two to a 16 bit word, low order byte first
+				for (int i = 0; i < size; i++) {
+					data[i] = (lutData[i >> 1] >> ((i & 1) * 8)) & mask;
+				}
+			} else {
+				log.warning("LUT data holds " + lutData.length + " values, descriptor expects " + size);
+				return null;
+			}
+			return new LookupTable(size, first, bits, data);
+		}
+
+		public int getSize()
+		{
+			return size;
+		}
+
+		public int getFirst()
+		{
+			return first;
+		}
+
+		public int getMaximumOutput()
+		{
+			return (1 << bits) - 1;
+		}
+
+		/**
+		 * @param value input value, clamped to the range of the table
+		 * @return table entry
+		 */
+		public int lookup(int value)
+		{
+			int index = value - first;
+			if (index < 0) {
+				index = 0;
+			} else if (index >= size) {
+				index = size - 1;
+			}
+			return data[index];
+		}
+	}
+}
@@ -0,0 +1,780 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.common.dicom;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Write the packed images built by {@link RasterProcessor} to PNG files.
+ * <p>
+ * TYPE_3BYTE_BGR, TYPE_BYTE_GRAY and TYPE_USHORT_GRAY images are encoded directly: rows are filtered and deflated one
+ * at a time, without an intermediate copy of the image, using the configured compression level and filter. When
+ * parallel compression is enabled, blocks of rows are deflated independently on a pool (in the manner of pigz) and
+ * joined into a single standard zlib stream. Other images are written with ImageIO.
+ * </p>
+ * <p>
+ * If the image has a {@link RasterProcessor#ADJUSTMENT_PROPERTY} property, as the TYPE_USHORT_GRAY images built by
+ * {@link RasterProcessor#buildGray16(java.awt.image.Raster)} do, the adjustment is written to a tEXt chunk with that
+ * keyword.
+ * </p>
+ */
+public class PackedPngWriter
+{
+	/**
+	 * PNG row filters. {@link #ADAPTIVE} chooses, for every row, the filter giving the smallest sum of absolute values.
+	 */
+	public enum Filter {
+		NONE, SUB, UP, AVERAGE, PAETH, ADAPTIVE
+	}
+
+	/**
+	 * Default number of rows deflated by one task in parallel mode.
+	 */
+	public static final int DEFAULT_BLOCK_ROWS = 256;
+
+	private static final byte[] PNG_SIGNATURE = { (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+	private static final String PNG_METADATA_FORMAT = "javax_imageio_png_1.0";
+	private static final int IDAT_SIZE = 64 * 1024;
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+
+	private int compressionLevel = 4;
+	private Filter filter = Filter.ADAPTIVE;
+	private boolean parallel = false;
+	private int blockRows = DEFAULT_BLOCK_ROWS;
+	private ForkJoinPool pool = ParallelRasterRenderer.getSharedPool();
+
+	/**
+	 * Writer for the PNG cache during ingest, favoring speed over file size.
+	 * 
+	 * @return writer
+	 */
+	public static PackedPngWriter forIngest()
+	{
+		PackedPngWriter writer = new PackedPngWriter();
+		writer.setCompressionLevel(1);
+		writer.setFilter(Filter.UP);
+		writer.setParallel(true);
+		return writer;
+	}
+
+	/**
+	 * Writer for archival copies, favoring file size over speed.
+	 * 
+	 * @return writer
+	 */
+	public static PackedPngWriter forArchive()
+	{
+		PackedPngWriter writer = new PackedPngWriter();
+		writer.setCompressionLevel(9);
+		writer.setFilter(Filter.ADAPTIVE);
+		writer.setParallel(true);
+		return writer;
+	}
+
+	public int getCompressionLevel()
+	{
+		return compressionLevel;
+	}
+
+	/**
+	 * @param value deflate level from 0 (no compression) to 9 (best compression)
+	 */
+	public void setCompressionLevel(int value)
+	{
+		if (value < 0 || value > 9)
+			throw new IllegalArgumentException("Invalid compression level " + value);
+		compressionLevel = value;
+	}
+
+	public Filter getFilter()
+	{
+		return filter;
+	}
+
+	public void setFilter(Filter value)
+	{
+		filter = value;
+	}
+
+	public boolean getParallel()
+	{
+		return parallel;
+	}
+
+	/**
+	 * @param value true if blocks of rows are to be deflated in parallel
+	 */
+	public void setParallel(boolean value)
+	{
+		parallel = value;
+	}
+
+	public int getBlockRows()
+	{
+		return blockRows;
+	}
+
+	/**
+	 * @param value number of rows deflated by one task in parallel mode
+	 */
+	public void setBlockRows(int value)
+	{
+		blockRows = Math.max(1, value);
+	}
+
+	public ForkJoinPool getPool()
+	{
+		return pool;
+	}
+
+	/**
+	 * @param value pool used in parallel mode, by default {@link ParallelRasterRenderer#getSharedPool()}
+	 */
+	public void setPool(ForkJoinPool value)
+	{
+		pool = value;
+	}
+
+	/**
+	 * Write the image to a PNG file.
+	 * 
+	 * @param image packed image
+	 * @param pngFile output file
+	 * @throws IOException
+	 */
+	public void write(BufferedImage image, File pngFile) throws IOException
+	{
+		OutputStream outputStream = null;
+		try {
+			outputStream = new BufferedOutputStream(new FileOutputStream(pngFile), IDAT_SIZE);
+			write(image, outputStream);
+			outputStream.close();
+		} finally {
+			IOUtils.closeQuietly(outputStream);
+		}
+	}
+
+	/**
+	 * Write the image in PNG format to an output stream.
+	 * 
+	 * @param image packed image
+	 * @param outputStream stream receiving the PNG data, left open
+	 * @throws IOException
+	 */
+	public void write(BufferedImage image, OutputStream outputStream) throws IOException
+	{
+		ScanlineSource source = ScanlineSource.create(image);
+		if (source == null) {
+			writeWithImageIO(image, outputStream);
+			return;
+		}
+		outputStream.write(PNG_SIGNATURE);
+		ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+		writeInt(header, image.getWidth());
+		writeInt(header, image.getHeight());
+		header.write(source.bitDepth);
+		header.write(source.colorType);
+		header.write(0); // Compression method
+		header.write(0); // Filter method
+		header.write(0); // No interlace
+		writeChunk(outputStream, "IHDR", header.toByteArray());
+		Object adjustment = image.getProperty(RasterProcessor.ADJUSTMENT_PROPERTY);
+		if (adjustment instanceof Integer) {
+			byte[] text = (RasterProcessor.ADJUSTMENT_PROPERTY + "\0" + adjustment).getBytes("ISO-8859-1");
+			writeChunk(outputStream, "tEXt", text);
+		}
+		IdatOutputStream idat = new IdatOutputStream(outputStream);
+		if (parallel && pool != null && image.getHeight() > blockRows) {
+			writeParallel(source, idat);
+		} else {
+			writeSequential(source, idat);
+		}
+		idat.flush();
+		writeChunk(outputStream, "IEND", new byte[0]);
+		outputStream.flush();
+	}
+
+	private void writeSequential(ScanlineSource source, OutputStream idat) throws IOException
+	{
+		Deflater deflater = new Deflater(compressionLevel);
+		try {
+			DeflaterOutputStream zlib = new DeflaterOutputStream(idat, deflater, IDAT_SIZE);
+			RowFilter rowFilter = new RowFilter(source, filter);
+			for (int y = 0; y < source.height; y++) {
+				zlib.write(rowFilter.filterRow(y), 0, source.rowBytes + 1);
+			}
+			zlib.finish();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Deflate blocks of rows in parallel and join them into one zlib stream.
+	 * <p>
+	 * Each block is a raw deflate stream ended with a sync flush, primed with the last 32K of filtered data from the
+	 * previous block, so the joined stream is equivalent to a single deflate stream. The Adler-32 checksums of the blocks
+	 * are combined for the zlib trailer.
+	 * </p>
+	 */
+	private void writeParallel(final ScanlineSource source, OutputStream idat) throws IOException
+	{
+		List<Callable<DeflatedBlock>> tasks = new ArrayList<Callable<DeflatedBlock>>();
+		for (int firstRow = 0; firstRow < source.height; firstRow += blockRows) {
+			final int start = firstRow;
+			final int end = Math.min(source.height, firstRow + blockRows);
+			tasks.add(new Callable<DeflatedBlock>() {
+				@Override
+				public DeflatedBlock call()
+				{
+					return deflateBlock(source, start, end);
+				}
+			});
+		}
+		idat.write(0x78);
+		idat.write(zlibFlags(compressionLevel));
+		long adler = 1;
+		try {
+			List<Future<DeflatedBlock>> results = pool.invokeAll(tasks);
+			for (Future<DeflatedBlock> result : results) {
+				DeflatedBlock block = result.get();
+				idat.write(block.data, 0, block.length);
+				adler = combineAdler32(adler, block.adler, block.inputLength);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing PNG", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Error compressing PNG", e.getCause());
+		}
+		writeInt(idat, (int)adler);
+	}
+
+	private DeflatedBlock deflateBlock(ScanlineSource source, int firstRow, int endRow)
+	{
+		int lineBytes = source.rowBytes + 1;
+		RowFilter rowFilter = new RowFilter(source, filter);
+		Deflater deflater = new Deflater(compressionLevel, true);
+		Adler32 adler = new Adler32();
+		ByteArrayOutputStream output = new ByteArrayOutputStream(lineBytes * (endRow - firstRow) / 2 + 64);
+		byte[] buffer = new byte[IDAT_SIZE];
+		try {
+			if (firstRow > 0) {
+				int dictionaryRows = Math.min(firstRow, (DICTIONARY_SIZE + lineBytes - 1) / lineBytes);
+				byte[] dictionary = new byte[dictionaryRows * lineBytes];
+				for (int y = firstRow - dictionaryRows; y < firstRow; y++) {
+					System.arraycopy(rowFilter.filterRow(y), 0, dictionary, (y - firstRow + dictionaryRows) * lineBytes,
+							lineBytes);
+				}
+				int dictionaryLength = Math.min(DICTIONARY_SIZE, dictionary.length);
+				deflater.setDictionary(dictionary, dictionary.length - dictionaryLength, dictionaryLength);
+			}
+			for (int y = firstRow; y < endRow; y++) {
+				byte[] line = rowFilter.filterRow(y);
+				adler.update(line, 0, lineBytes);
+				deflater.setInput(line, 0, lineBytes);
+				while (!deflater.needsInput()) {
+					int length = deflater.deflate(buffer, 0, buffer.length, Deflater.NO_FLUSH);
+					output.write(buffer, 0, length);
+				}
+			}
+			if (endRow == source.height) {
+				deflater.finish();
+				while (!deflater.finished()) {
+					int length = deflater.deflate(buffer);
+					output.write(buffer, 0, length);
+				}
+			} else {
+				int length;
+				do {
+					length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+					output.write(buffer, 0, length);
+				} while (length == buffer.length);
+			}
+		} finally {
+			deflater.end();
+		}
+		DeflatedBlock block = new DeflatedBlock();
+		block.data = output.toByteArray();
+		block.length = block.data.length;
+		block.adler = adler.getValue();
+		block.inputLength = (long)lineBytes * (endRow - firstRow);
+		return block;
+	}
+
+	private void writeWithImageIO(BufferedImage image, OutputStream outputStream) throws IOException
+	{
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("png");
+		if (!writers.hasNext())
+			throw new IOException("PNG writer not found");
+		ImageWriter writer = writers.next();
+		ImageOutputStream ios = null;
+		try {
+			ios = ImageIO.createImageOutputStream(outputStream);
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image),
+					param);
+			Object adjustment = image.getProperty(RasterProcessor.ADJUSTMENT_PROPERTY);
+			if (adjustment instanceof Integer) {
+				IIOMetadataNode entry = new IIOMetadataNode("tEXtEntry");
+				entry.setAttribute("keyword", RasterProcessor.ADJUSTMENT_PROPERTY);
+				entry.setAttribute("value", adjustment.toString());
+				IIOMetadataNode text = new IIOMetadataNode("tEXt");
+				text.appendChild(entry);
+				IIOMetadataNode root = new IIOMetadataNode(PNG_METADATA_FORMAT);
+				root.appendChild(text);
+				metadata.mergeTree(PNG_METADATA_FORMAT, root);
+			}
+			writer.setOutput(ios);
+			writer.write(null, new IIOImage(image, null, metadata), param);
+		} finally {
+			writer.dispose();
+			if (ios != null)
+				ios.close();
+		}
+	}
+
+	/**
+	 * Second byte of the zlib header, with the level hint and header check bits.
+	 */
+	private static int zlibFlags(int level)
+	{
+		if (level < 2)
+			return 0x01;
+		else if (level < 6)
+			return 0x5e;
+		else if (level == 6)
+			return 0x9c;
+		else
+			return 0xda;
+	}
+
+	/**
+	 * Combine the Adler-32 checksums of two consecutive pieces of data, as adler32_combine() in zlib.
+	 */
+	static long combineAdler32(long adler1, long adler2, long length2)
+	{
+		final long base = 65521;
+		long remainder = length2 % base;
+		long sum1 = adler1 & 0xffff;
+		long sum2 = (remainder * sum1) % base;
+		sum1 += (adler2 & 0xffff) + base - 1;
+		sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + base - remainder;
+		if (sum1 >= base)
+			sum1 -= base;
+		if (sum1 >= base)
+			sum1 -= base;
+		if (sum2 >= (base << 1))
+			sum2 -= (base << 1);
+		if (sum2 >= base)
+			sum2 -= base;
+		return sum1 | (sum2 << 16);
+	}
+
+	private static void writeInt(OutputStream outputStream, int value) throws IOException
+	{
+		outputStream.write(value >>> 24);
+		outputStream.write(value >>> 16);
+		outputStream.write(value >>> 8);
+		outputStream.write(value);
+	}
+
+	private static void writeChunk(OutputStream outputStream, String type, byte[] data) throws IOException
+	{
+		writeChunk(outputStream, type, data, data.length);
+	}
+
+	private static void writeChunk(OutputStream outputStream, String type, byte[] data, int length)
+			throws IOException
+	{
+		byte[] typeBytes = type.getBytes("ISO-8859-1");
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data, 0, length);
+		writeInt(outputStream, length);
+		outputStream.write(typeBytes);
+		outputStream.write(data, 0, length);
+		writeInt(outputStream, (int)crc.getValue());
+	}
+
+	/**
+	 * Result of deflating one block of rows.
+	 */
+	private static class DeflatedBlock
+	{
+		byte[] data;
+		int length;
+		long adler;
+		long inputLength;
+	}
+
+	/**
+	 * Stream splitting the zlib data into IDAT chunks.
+	 */
+	private static class IdatOutputStream extends OutputStream
+	{
+		private final OutputStream out;
+		private final byte[] buffer = new byte[IDAT_SIZE];
+		private int count = 0;
+
+		IdatOutputStream(OutputStream out)
+		{
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			if (count == buffer.length)
+				flush();
+			buffer[count++] = (byte)b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			while (len > 0) {
+				if (count == buffer.length)
+					flush();
+				int n = Math.min(len, buffer.length - count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			if (count > 0) {
+				writeChunk(out, "IDAT", buffer, count);
+				count = 0;
+			}
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			flush();
+		}
+	}
+
+	/**
+	 * Unfiltered rows of an image in PNG byte order, read from the backing array of the raster.
+	 */
+	private static class ScanlineSource
+	{
+		final int width;
+		final int height;
+		final int bitDepth;
+		final int colorType;
+		final int bytesPerPixel;
+		final int rowBytes;
+		private final Raster raster;
+		private final int[] bandOffsets;
+		private final int pixelStride;
+		private final int scanlineStride;
+
+		private ScanlineSource(Raster raster, int bitDepth, int colorType, int bytesPerPixel)
+		{
+			ComponentSampleModel sampleModel = (ComponentSampleModel)raster.getSampleModel();
+			this.raster = raster;
+			this.width = raster.getWidth();
+			this.height = raster.getHeight();
+			this.bitDepth = bitDepth;
+			this.colorType = colorType;
+			this.bytesPerPixel = bytesPerPixel;
+			this.rowBytes = width * bytesPerPixel;
+			this.bandOffsets = sampleModel.getBandOffsets();
+			this.pixelStride = sampleModel.getPixelStride();
+			this.scanlineStride = sampleModel.getScanlineStride();
+		}
+
+		/**
+		 * @return source for the image, or null if the image must be written with ImageIO
+		 */
+		static ScanlineSource create(BufferedImage image)
+		{
+			Raster raster = image.getRaster();
+			if (!(raster.getSampleModel() instanceof ComponentSampleModel) || raster.getMinX() != 0
+					|| raster.getMinY() != 0 || raster.getSampleModelTranslateX() != 0
+					|| raster.getSampleModelTranslateY() != 0 || raster.getDataBuffer().getNumBanks() != 1
+					|| raster.getDataBuffer().getOffset() != 0)
+				return null;
+			switch (image.getType()) {
+				case BufferedImage.TYPE_3BYTE_BGR:
+					return new ScanlineSource(raster, 8, 2, 3);
+				case BufferedImage.TYPE_BYTE_GRAY:
+					return new ScanlineSource(raster, 8, 0, 1);
+				case BufferedImage.TYPE_USHORT_GRAY:
+					return new ScanlineSource(raster, 16, 0, 2);
+				default:
+					return null;
+			}
+		}
+
+		void readRow(int y, byte[] row, int offset)
+		{
+			int index = y * scanlineStride;
+			if (bitDepth == 16) {
+				short[] data = ((DataBufferUShort)raster.getDataBuffer()).getData();
+				index += bandOffsets[0];
+				for (int x = 0; x < width; x++, index += pixelStride) {
+					row[offset++] = (byte)(data[index] >> 8);
+					row[offset++] = (byte)data[index];
+				}
+			} else {
+				byte[] data = ((DataBufferByte)raster.getDataBuffer()).getData();
+				int bands = bandOffsets.length;
+				for (int x = 0; x < width; x++, index += pixelStride) {
+					for (int b = 0; b < bands; b++) {
+						row[offset++] = data[index + bandOffsets[b]];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Produces filtered rows, each starting with its filter type byte.
+	 */
+	private static class RowFilter
+	{
+		private final ScanlineSource source;
+		private final Filter filter;
+		private final int bpp;
+		private final int rowBytes;
+		private byte[] current;
+		private byte[] previous;
+		private int currentRow = -1;
+		private final byte[] line;
+		private final byte[][] candidates;
+
+		RowFilter(ScanlineSource source, Filter filter)
+		{
+			this.source = source;
+			this.filter = filter;
+			this.bpp = source.bytesPerPixel;
+			this.rowBytes = source.rowBytes;
+			this.current = new byte[rowBytes];
+			this.previous = new byte[rowBytes];
+			this.line = new byte[rowBytes + 1];
+			this.candidates = filter == Filter.ADAPTIVE ? new byte[5][rowBytes + 1] : null;
+		}
+
+		/**
+		 * Filter a row. Rows are expected in increasing order; the previous row is read again when needed.
+		 * 
+		 * @param y row number
+		 * @return filter type byte followed by the filtered row
+		 */
+		byte[] filterRow(int y)
+		{
+			if (y == currentRow + 1 && currentRow >= 0) {
+				byte[] swap = previous;
+				previous = current;
+				current = swap;
+			} else if (y > 0) {
+				source.readRow(y - 1, previous, 0);
+			} else {
+				Arrays.fill(previous, (byte)0);
+			}
+			source.readRow(y, current, 0);
+			currentRow = y;
+			if (filter != Filter.ADAPTIVE) {
+				apply(filter, line);
+				return line;
+			}
+			byte[] best = null;
+			long bestSum = Long.MAX_VALUE;
+			for (int f = 0; f < 5; f++) {
+				byte[] candidate = candidates[f];
+				apply(Filter.values()[f], candidate);
+				long sum = 0;
+				for (int i = 1; i <= rowBytes; i++) {
+					sum += Math.abs((int)candidate[i]);
+				}
+				if (sum < bestSum) {
+					bestSum = sum;
+					best = candidate;
+				}
+			}
+			return best;
+		}
+
+		private void apply(Filter type, byte[] out)
+		{
+			out[0] = (byte)type.ordinal();
+			switch (type) {
+				case SUB:
+					for (int i = 0; i < rowBytes; i++) {
+						int left = i >= bpp ? current[i - bpp] & 0xff : 0;
+						out[i + 1] = (byte)(current[i] - left);
+					}
+					break;
+				case UP:
+					for (int i = 0; i < rowBytes; i++) {
+						out[i + 1] = (byte)(current[i] - previous[i]);
+					}
+					break;
+				case AVERAGE:
+					for (int i = 0; i < rowBytes; i++) {
+						int left = i >= bpp ? current[i - bpp] & 0xff : 0;
+						out[i + 1] = (byte)(current[i] - ((left + (previous[i] & 0xff)) >> 1));
+					}
+					break;
+				case PAETH:
+					for (int i = 0; i < rowBytes; i++) {
+						int left = i >= bpp ? current[i - bpp] & 0xff : 0;
+						int up = previous[i] & 0xff;
+						int upLeft = i >= bpp ? previous[i - bpp] & 0xff : 0;
+						int p = left + up - upLeft;
+						int pa = Math.abs(p - left);
+						int pb = Math.abs(p - up);
+						int pc = Math.abs(p - upLeft);
+						int predictor = (pa <= pb && pa <= pc) ? left : (pb <= pc ? up : upLeft);
+						out[i + 1] = (byte)(current[i] - predictor);
+					}
+					break;
+				default:
+					System.arraycopy(current, 0, out, 1, rowBytes);
+			}
+		}
+	}
+}
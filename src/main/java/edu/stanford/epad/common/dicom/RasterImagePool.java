@@ -0,0 +1,416 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.common.dicom;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.WritableRaster;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This is a pool of the output images and scratch buffers used by {@link RasterProcessor}.
+ * <p>
+ * Images are pooled by width, height and image type, and int buffers by length. When a series of same-size frames is
+ * rendered, the images released after each frame is written are handed out again for the next frame instead of being
+ * allocated anew. Objects are only returned to the pool through {@link #releaseImage(BufferedImage)} and
+ * {@link #releaseBuffer(int[])}, so an image that is never released is simply left to the garbage collector.
+ * </p>
+ * <p>
+ * The pool holds at most {@link #getMaximumBytes()} bytes; when a released object does not fit, objects of the least
+ * recently used sizes are dropped.
+ * </p>
+ */
+public class RasterImagePool
+{
+	/**
+	 * Default bound of the pool returned by {@link #getInstance()}.
+	 */
+	public static final long DEFAULT_MAXIMUM_BYTES = 64L * 1024 * 1024;
+
+	private static RasterImagePool ourInstance = new RasterImagePool(DEFAULT_MAXIMUM_BYTES);
+
+	private final Map<PoolKey, Pooled> poolMap = new LinkedHashMap<PoolKey, Pooled>(16, 0.75f, true);
+	private final long maximumBytes;
+	private long bytes = 0;
+
+	public static RasterImagePool getInstance()
+	{
+		return ourInstance;
+	}
+
+	/**
+	 * @param maximumBytes maximum number of bytes held by the pool
+	 */
+	public RasterImagePool(long maximumBytes)
+	{
+		this.maximumBytes = maximumBytes;
+	}
+
+	public long getMaximumBytes()
+	{
+		return maximumBytes;
+	}
+
+	/**
+	 * @return number of bytes currently held by the pool
+	 */
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	/**
+	 * Get an image from the pool, or create a new one if none of this size and type is available.
+	 * <p>
+	 * The pixels of a pooled image are cleared to zero, so it is indistinguishable from a new image.
+	 * </p>
+	 * 
+	 * @param width width of image
+	 * @param height height of image
+	 * @param imageType one of the predefined BufferedImage types
+	 * @return image
+	 */
+	public BufferedImage acquireImage(int width, int height, int imageType)
+	{
+		BufferedImage image = (BufferedImage)take(new PoolKey(width, height, imageType));
+		if (image == null) {
+			return new BufferedImage(width, height, imageType);
+		}
+		clear(image.getRaster().getDataBuffer());
+		return image;
+	}
+
+	/**
+	 * Get an image holding a copy of the pixels and properties of another image.
+	 * <p>
+	 * Images of the predefined types are taken from the pool; images of a custom type are copied to a new image.
+	 * </p>
+	 * 
+	 * @param image image to be copied
+	 * @return copy
+	 */
+	public BufferedImage copyImage(BufferedImage image)
+	{
+		Hashtable<String, Object> properties = new Hashtable<String, Object>();
+		String[] names = image.getPropertyNames();
+		if (names != null) {
+			for (String name : names) {
+				Object value = image.getProperty(name);
+				if (value != null && value != Image.UndefinedProperty) {
+					properties.put(name, value);
+				}
+			}
+		}
+		WritableRaster raster;
+		if (image.getType() == BufferedImage.TYPE_CUSTOM || image.getRaster().getParent() != null) {
+			raster = image.copyData(null);
+		} else {
+			raster = acquireImage(image.getWidth(), image.getHeight(), image.getType()).getRaster();
+			if (!copy(image.getRaster().getDataBuffer(), raster.getDataBuffer())) {
+				raster.setDataElements(0, 0, image.getRaster());
+			}
+		}
+		return new BufferedImage(image.getColorModel(), raster, image.isAlphaPremultiplied(), properties);
+	}
+
+	/**
+	 * Return an image to the pool. The image must not be used after it is released.
+	 * 
+	 * @param image image, ignored if null or of a custom type
+	 */
+	public void releaseImage(BufferedImage image)
+	{
+		if (image == null || image.getType() == BufferedImage.TYPE_CUSTOM) {
+			return;
+		}
+		WritableRaster raster = image.getRaster();
+		if (raster.getParent() != null) {
+			return;
+		}
+		DataBuffer dataBuffer = raster.getDataBuffer();
+		long size = (long)dataBuffer.getSize() * dataBuffer.getNumBanks()
+				* DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8;
+		put(new PoolKey(image.getWidth(), image.getHeight(), image.getType()), image, size);
+	}
+
+	/**
+	 * Get an int buffer from the pool, or create a new one if none of this length is available.
+	 * <p>
+	 * The contents of a pooled buffer are left as they were when it was released.
+	 * </p>
+	 * 
+	 * @param length length of buffer
+	 * @return buffer
+	 */
+	public int[] acquireBuffer(int length)
+	{
+		int[] buffer = (int[])take(new PoolKey(length, 0, PoolKey.INT_BUFFER));
+		return buffer == null ? new int[length] : buffer;
+	}
+
+	/**
+	 * Return an int buffer to the pool. The buffer must not be used after it is released.
+	 * 
+	 * @param buffer buffer, ignored if null
+	 */
+	public void releaseBuffer(int[] buffer)
+	{
+		if (buffer != null) {
+			put(new PoolKey(buffer.length, 0, PoolKey.INT_BUFFER), buffer, 4L * buffer.length);
+		}
+	}
+
+	public synchronized void clear()
+	{
+		poolMap.clear();
+		bytes = 0;
+	}
+
+	private synchronized Object take(PoolKey key)
+	{
+		Pooled pooled = poolMap.get(key);
+		if (pooled == null) {
+			return null;
+		}
+		Object value = pooled.objects.pop();
+		bytes -= pooled.size;
+		if (pooled.objects.isEmpty()) {
+			poolMap.remove(key);
+		}
+		return value;
+	}
+
+	private synchronized void put(PoolKey key, Object value, long size)
+	{
+		if (size > maximumBytes) {
+			return;
+		}
+		Pooled released = poolMap.get(key);
+		if (released != null && released.objects.contains(value)) {
+			return;
+		}
+		Iterator<Pooled> eldest = poolMap.values().iterator();
+		while (bytes + size > maximumBytes && eldest.hasNext()) {
+			Pooled dropped = eldest.next();
+			bytes -= dropped.size * dropped.objects.size();
+			eldest.remove();
+		}
+		Pooled pooled = poolMap.get(key);
+		if (pooled == null) {
+			pooled = new Pooled(size);
+			poolMap.put(key, pooled);
+		}
+		pooled.objects.push(value);
+		bytes += size;
+	}
+
+	/**
+	 * Copy the backing arrays of a data buffer to another of the same layout.
+	 * 
+	 * @return false if the buffers are not both byte, short or unsigned short buffers of the same size and offsets
+	 */
+	private static boolean copy(DataBuffer source, DataBuffer destination)
+	{
+		if (source.getClass() != destination.getClass() || source.getSize() != destination.getSize()
+				|| source.getNumBanks() != destination.getNumBanks()
+				|| !Arrays.equals(source.getOffsets(), destination.getOffsets())) {
+			return false;
+		}
+		for (int bank = 0; bank < source.getNumBanks(); bank++) {
+			int length = source.getOffsets()[bank] + source.getSize();
+			if (source instanceof DataBufferByte) {
+				byte[] data = ((DataBufferByte)source).getData(bank);
+				System.arraycopy(data, 0, ((DataBufferByte)destination).getData(bank), 0, length);
+			} else if (source instanceof DataBufferUShort) {
+				short[] data = ((DataBufferUShort)source).getData(bank);
+				System.arraycopy(data, 0, ((DataBufferUShort)destination).getData(bank), 0, length);
+			} else if (source instanceof DataBufferShort) {
+				short[] data = ((DataBufferShort)source).getData(bank);
+				System.arraycopy(data, 0, ((DataBufferShort)destination).getData(bank), 0, length);
+			} else {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void clear(DataBuffer dataBuffer)
+	{
+		for (int bank = 0; bank < dataBuffer.getNumBanks(); bank++) {
+			if (dataBuffer instanceof DataBufferByte) {
+				Arrays.fill(((DataBufferByte)dataBuffer).getData(bank), (byte)0);
+			} else if (dataBuffer instanceof DataBufferUShort) {
+				Arrays.fill(((DataBufferUShort)dataBuffer).getData(bank), (short)0);
+			} else if (dataBuffer instanceof DataBufferShort) {
+				Arrays.fill(((DataBufferShort)dataBuffer).getData(bank), (short)0);
+			} else if (dataBuffer instanceof DataBufferInt) {
+				Arrays.fill(((DataBufferInt)dataBuffer).getData(bank), 0);
+			} else {
+				for (int i = 0; i < dataBuffer.getSize(); i++) {
+					dataBuffer.setElem(bank, i, 0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Objects of one size held by the pool, most recently released first.
+	 */
+	private static class Pooled
+	{
+		final long size;
+		final ArrayDeque<Object> objects = new ArrayDeque<Object>();
+
+		Pooled(long size)
+		{
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Key of the pool: width, height and image type of an image, or length of an int buffer.
+	 */
+	private static class PoolKey
+	{
+		static final int INT_BUFFER = -1;
+
+		private final int width;
+		private final int height;
+		private final int type;
+
+		PoolKey(int width, int height, int type)
+		{
+			this.width = width;
+			this.height = height;
+			this.type = type;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof PoolKey)) {
+				return false;
+			}
+			PoolKey other = (PoolKey)o;
+			return width == other.width && height == other.height && type == other.type;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (width * 31 + height) * 31 + type;
+		}
+	}
+}
@@ -105,8 +105,15 @@
 package edu.stanford.epad.common.dicom;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.Hashtable;
 
 import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.data.Tag;
@@ -144,6 +151,219 @@ public class RasterProcessor
 		debugLevel = value;
 	}
 
+	/**
+	 * Indicates that the build methods use precompiled lookup tables.
+	 * <p>
+	 * The tables map every possible PixelData value to its output value and are shared through
+	 * {@link RasterLookupTableCache}, so processing a frame becomes one array lookup per pixel.
+	 * </p>
+	 */
+	protected boolean useLookupTables = false;
+
+	/**
+	 * Getter for {@link #useLookupTables} property.
+	 * 
+	 * @return value of property
+	 */
+	public boolean getUseLookupTables()
+	{
+		return useLookupTables;
+	}
+
+	/**
+	 * Setter for {@link #useLookupTables} property.
+	 * 
+	 * @param value value for property
+	 */
+	public void setUseLookupTables(boolean value)
+	{
+		useLookupTables = value;
+	}
+
+	/**
+	 * Name of the image property holding the adjustment in images built by {@link #buildGray16(Raster)}.
+	 */
+	public static final String ADJUSTMENT_PROPERTY = "Adjustment";
+
+	/**
+	 * Layouts for images holding the full 16 bit PixelData value.
+	 */
+	public enum PackedFormat {
+		/**
+		 * TYPE_3BYTE_BGR image built by {@link RasterProcessor#buildPng(Raster)}, with the adjustment in the blue channel
+		 * of the first two pixels.
+		 */
+		BGR,
+		/**
+		 * TYPE_USHORT_GRAY image built by {@link RasterProcessor#buildGray16(Raster)}, with the adjustment in the
+		 * {@link RasterProcessor#ADJUSTMENT_PROPERTY} image property.
+		 */
+		GRAY16
+	}
+
+	/**
+	 * Methods for calculating the window when WindowCenter and WindowWidth are not in the Dicom object.
+	 */
+	public enum AutoWindow {
+		/**
+		 * Window covers the full range of gray levels.
+		 */
+		MINIMUM_MAXIMUM,
+		/**
+		 * Window covers the gray levels between {@link RasterProcessor#lowPercentile} and
+		 * {@link RasterProcessor#highPercentile}, ignoring outliers such as air and padding.
+		 */
+		PERCENTILE
+	}
+
+	/**
+	 * Method used for calculating a missing window.
+	 */
+	protected AutoWindow autoWindow = AutoWindow.MINIMUM_MAXIMUM;
+	/**
+	 * Percentile used as the low end of the window by {@link AutoWindow#PERCENTILE}.
+	 */
+	protected float lowPercentile = 1.0f;
+	/**
+	 * Percentile used as the high end of the window by {@link AutoWindow#PERCENTILE}.
+	 */
+	protected float highPercentile = 99.0f;
+	/**
+	 * Indicates that the gray level histogram of the first frame of a series is kept in {@link GrayLevelHistogramCache}
+	 * and used to calculate the window for the later frames of the series.
+	 */
+	protected boolean cacheSeriesHistogram = false;
+	/**
+	 * Pool supplying the output images and scratch buffers, or null if they are allocated for every call.
+	 */
+	protected RasterImagePool imagePool = null;
+
+	/**
+	 * Getter for {@link #autoWindow} property.
+	 * 
+	 * @return value of property
+	 */
+	public AutoWindow getAutoWindow()
+	{
+		return autoWindow;
+	}
+
+	/**
+	 * Setter for {@link #autoWindow} property.
+	 * 
+	 * @param value value for property
+	 */
+	public void setAutoWindow(AutoWindow value)
+	{
+		autoWindow = value;
+	}
+
+	/**
+	 * Setter for {@link #lowPercentile} and {@link #highPercentile} properties.
+	 * 
+	 * @param low percentile for the low end of the window
+	 * @param high percentile for the high end of the window
+	 */
+	public void setPercentiles(float low, float high)
+	{
+		lowPercentile = low;
+		highPercentile = high;
+	}
+
+	/**
+	 * Getter for {@link #cacheSeriesHistogram} property.
+	 * 
+	 * @return value of property
+	 */
+	public boolean getCacheSeriesHistogram()
+	{
+		return cacheSeriesHistogram;
+	}
+
+	/**
+	 * Setter for {@link #cacheSeriesHistogram} property.
+	 * 
+	 * @param value value for property
+	 */
+	public void setCacheSeriesHistogram(boolean value)
+	{
+		cacheSeriesHistogram = value;
+	}
+
+	/**
+	 * Getter for {@link #imagePool} property.
+	 * 
+	 * @return value of property
+	 */
+	public RasterImagePool getImagePool()
+	{
+		return imagePool;
+	}
+
+	/**
+	 * Setter for {@link #imagePool} property.
+	 * 
+	 * @param value value for property
+	 */
+	public void setImagePool(RasterImagePool value)
+	{
+		imagePool = value;
+	}
+
+	/**
+	 * Return an image built by this processor to the {@link #imagePool} once it has been written.
+	 * 
+	 * @param image image that will no longer be used
+	 */
+	public void releaseImage(BufferedImage image)
+	{
+		if (imagePool != null) {
+			imagePool.releaseImage(image);
+		}
+	}
+
+	/**
+	 * Create an output image, taken from the {@link #imagePool} if there is one.
+	 * 
+	 * @param width width of image
+	 * @param height height of image
+	 * @param imageType one of the predefined BufferedImage types
+	 * @return image with all pixels zero
+	 */
+	protected BufferedImage createImage(int width, int height, int imageType)
+	{
+		if (imagePool != null) {
+			return imagePool.acquireImage(width, height, imageType);
+		}
+		return new BufferedImage(width, height, imageType);
+	}
+
+	/**
+	 * Get a scratch buffer, taken from the {@link #imagePool} if there is one.
+	 * 
+	 * @param length length of buffer
+	 * @return buffer with unspecified contents
+	 */
+	protected int[] acquireBuffer(int length)
+	{
+		if (imagePool != null) {
+			return imagePool.acquireBuffer(length);
+		}
+		return new int[length];
+	}
+
+	/**
+	 * Return a scratch buffer obtained from {@link #acquireBuffer(int)}.
+	 * 
+	 * @param buffer buffer that will no longer be used
+	 */
+	protected void releaseBuffer(int[] buffer)
+	{
+		if (imagePool != null) {
+			imagePool.releaseBuffer(buffer);
+		}
+	}
+
 	/**
 	 * Class to generate a histogram of values.
 	 * 
@@ -336,7 +556,14 @@ public class RasterProcessor
 		protected int[] lutDescriptor;
 		protected float rescaleSlope = 1.0f;
 		protected float rescaleIntercept = 0.0f;
+		/**
+		 * Table from {@link Tag#LUTData}, or null if the mapping is the rescale slope and intercept.
+		 */
+		protected LutChain.LookupTable lookupTable = null;
 
+		/**
+		 * @param value Dicom object, or an item of its {@link Tag#ModalityLUTSequence}
+		 */
 		public MLUT(DicomObject value)
 		{
 			if (value.containsValue(Tag.RescaleSlope)) {
@@ -347,9 +574,12 @@ public class RasterProcessor
 			}
 			if (value.containsValue(Tag.ModalityLUTSequence)) {
 				modalityLUT = value.getNestedDicomObject(Tag.ModalityLUTSequence);
-				lutDescriptor = value.getInts(Tag.LUTDescriptor);
-				rescaleSlope = modalityLUT.getFloat(Tag.RescaleSlope);
-				rescaleIntercept = modalityLUT.getFloat(Tag.RescaleIntercept);
+			} else if (value.containsValue(Tag.LUTData)) {
+				modalityLUT = value;
+			}
+			if (modalityLUT != null) {
+				lutDescriptor = modalityLUT.getInts(Tag.LUTDescriptor);
+				lookupTable = LutChain.LookupTable.read(modalityLUT, pixelRepresentation == 1);
 			}
 		}
 	}
@@ -365,6 +595,14 @@ public class RasterProcessor
 		protected DicomObject volumeLUT = null;
 		protected float[] windowCenter = { -10.0f };
 		protected float[] windowWidth = { -10.0f };
+		/**
+		 * Function applied with the window, from {@link Tag#VOILUTFunction}.
+		 */
+		protected LutChain.VoiFunction voiFunction = LutChain.VoiFunction.LINEAR;
+		/**
+		 * Table from the first item of {@link Tag#VOILUTSequence}, used instead of the window if present.
+		 */
+		protected LutChain.LookupTable lookupTable = null;
 
 		public VLUT(DicomObject value)
 		{
@@ -374,8 +612,17 @@ public class RasterProcessor
 			if (value.containsValue(Tag.WindowWidth)) {
 				windowWidth = value.getFloats(Tag.WindowWidth);
 			}
+			if (value.containsValue(Tag.VOILUTFunction)) {
+				String function = value.getString(Tag.VOILUTFunction).trim();
+				if ("SIGMOID".equals(function)) {
+					voiFunction = LutChain.VoiFunction.SIGMOID;
+				} else if ("LINEAR_EXACT".equals(function)) {
+					voiFunction = LutChain.VoiFunction.LINEAR_EXACT;
+				}
+			}
 			if (value.containsValue(Tag.VOILUTSequence)) {
 				volumeLUT = value.getNestedDicomObject(Tag.VOILUTSequence);
+				lookupTable = LutChain.LookupTable.read(volumeLUT, isModalityOutputSigned());
 			}
 		}
 	}
@@ -389,18 +636,53 @@ public class RasterProcessor
 	public class PLUT
 	{
 		protected DicomObject presentationLUT = null;
+		/**
+		 * Indicates that {@link Tag#PresentationLUTShape} is INVERSE.
+		 */
+		protected boolean inverse = false;
+		/**
+		 * Table from the first item of {@link Tag#PresentationLUTSequence}, used instead of the shape if present.
+		 */
+		protected LutChain.LookupTable lookupTable = null;
 
 		public PLUT(DicomObject value)
 		{
 			if (value.containsValue(Tag.PresentationLUTSequence)) {
 				presentationLUT = value.getNestedDicomObject(Tag.PresentationLUTSequence);
+				lookupTable = LutChain.LookupTable.read(presentationLUT, isModalityOutputSigned());
+			}
+			if (value.containsValue(Tag.PresentationLUTShape)) {
+				inverse = "INVERSE".equals(value.getString(Tag.PresentationLUTShape).trim());
 			}
 		}
 	}
 
+	/**
+	 * Determine whether the output of the modality stage can be negative, in which case the first value mapped in the
+	 * {@link Tag#LUTDescriptor} of the VOI and presentation LUTs is SS rather than US (PS3.3 C.11.2.1.1).
+	 * <p>
+	 * With implicit VR the descriptor is read as unsigned, so a CT VOI LUT starting at -1024 would otherwise start at
+	 * 64512.
+	 * </p>
+	 * 
+	 * @return true if the pixels are signed, the rescale intercept is negative or the modality LUT starts below 0
+	 */
+	protected boolean isModalityOutputSigned()
+	{
+		return pixelRepresentation == 1 || rescaleIntercept < 0
+				|| (mLUT != null && mLUT.lookupTable != null && mLUT.lookupTable.getFirst() < 0);
+	}
+
 	protected MLUT mLUT = null;
 	protected VLUT vLUT = null;
 	protected PLUT pLUT = null;
+	/**
+	 * Compiled LUT chain, set when the Dicom object has LUTs that {@link #buildWindowed(Raster)} must honor.
+	 */
+	protected LutChain lutChain = null;
+	private byte[] displayTable = null;
+	private float displayTableCenter;
+	private float displayTableWidth;
 	protected int minimumGrayLevel = 10000;
 	protected int maximumGrayLevel = -10000;
 
@@ -503,6 +785,10 @@ public class RasterProcessor
 	}
 
 	protected String photometricInterpretation = null;
+	/**
+	 * Value of {@link Tag#SeriesInstanceUID}, used as the key for cached histograms.
+	 */
+	protected String seriesInstanceUID = null;
 	/**
 	 * Indicates whether PixelData values are signed or unsigned.
 	 * <p>
@@ -661,6 +947,9 @@ public class RasterProcessor
 		if (objectValue.containsValue(Tag.PhotometricInterpretation)) {
 			photometricInterpretation = objectValue.getString(Tag.PhotometricInterpretation);
 		}
+		if (objectValue.containsValue(Tag.SeriesInstanceUID)) {
+			seriesInstanceUID = objectValue.getString(Tag.SeriesInstanceUID);
+		}
 		if (objectValue.containsValue(Tag.ModalityLUTSequence)) {
 			hasMLUT = true;
 			DicomObject nested = objectValue.getNestedDicomObject(Tag.ModalityLUTSequence);
@@ -741,6 +1030,11 @@ public class RasterProcessor
 			}
 		}
 		common();
+		vLUT = new VLUT(objectValue);
+		pLUT = new PLUT(objectValue);
+		if (LutChain.isRequired(this)) {
+			lutChain = new LutChain(this);
+		}
 	}
 
 	/**
@@ -861,7 +1155,10 @@ public class RasterProcessor
 	 */
 	public BufferedImage buildPng(Raster raster)
 	{
-		BufferedImage pngImage = new BufferedImage(raster.getWidth(), raster.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+		if (debugLevel == 0 && isBulkCompatible(raster)) {
+			return buildPackedBulk(raster, false, true);
+		}
+		BufferedImage pngImage = createImage(raster.getWidth(), raster.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
 		// BufferedImage pngImage = new BufferedImage(raster.getWidth(), raster.getHeight(),
 		// BufferedImage.TYPE_USHORT_GRAY);
 		WritableRaster writablePNGRaster = pngImage.getRaster();
@@ -941,10 +1238,13 @@ public class RasterProcessor
 	 */
 	public BufferedImage buildRawS(Raster raster)
 	{
+		if (debugLevel == 0 && isBulkCompatible(raster)) {
+			return buildPackedBulk(raster, false, false);
+		}
 		int[] grayInputArray = new int[1];
 		int[] grayArray = new int[1];
 		int[] bgrArray = new int[3];
-		BufferedImage working = new BufferedImage(raster.getWidth(), raster.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+		BufferedImage working = createImage(raster.getWidth(), raster.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
 		WritableRaster writable = working.getRaster();
 		Distribution rawValuesDistribution = null;
 		Distribution highOrderBitsDistribution = null;
@@ -1001,10 +1301,13 @@ public class RasterProcessor
 	 */
 	public BufferedImage buildScaled(Raster raster)
 	{
+		if (debugLevel == 0 && isBulkCompatible(raster)) {
+			return buildPackedBulk(raster, true, false);
+		}
 		int[] grayInputArray = new int[1];
 		int[] grayArray = new int[1];
 		int[] bgrArray = new int[3];
-		BufferedImage pngImage = new BufferedImage(raster.getWidth(), raster.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+		BufferedImage pngImage = createImage(raster.getWidth(), raster.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
 		WritableRaster pngRaster = pngImage.getRaster();
 		Distribution rawValuesDistribution = null;
 		Distribution highOrderBitsDistribution = null;
@@ -1047,10 +1350,58 @@ public class RasterProcessor
 		return pngImage;
 	}
 
+	/**
+	 * Create a 16 bit grayscale image for the PNG file.
+	 * <p>
+	 * Each pixel holds the same 16 bit value that {@link #buildPng(Raster)} splits across the red and green channels.
+	 * The adjustment for signed data is not placed in the pixels but in the {@link #ADJUSTMENT_PROPERTY} property of the
+	 * image, which {@link PackedPngWriter} writes to a tEXt chunk of the PNG file.
+	 * </p>
+	 * 
+	 * @param raster raster from grayscale image
+	 * @return TYPE_USHORT_GRAY image
+	 */
+	public BufferedImage buildGray16(Raster raster)
+	{
+		BufferedImage grayImage = createGray16Image(raster.getWidth(), raster.getHeight());
+		WritableRaster grayRaster = grayImage.getRaster();
+		if (isBulkCompatible(raster)) {
+			gray16Rows(raster, grayRaster, 0, raster.getHeight());
+		} else {
+			int[] grayInputArray = new int[1];
+			int[] grayArray = new int[1];
+			for (int x = 0; x < raster.getWidth(); x++) {
+				for (int y = 0; y < raster.getHeight(); y++) {
+					grayArray = raster.getPixel(x, y, grayInputArray);
+					grayArray[0] = dataValue(grayArray[0]) & 0xffff;
+					grayRaster.setPixel(x, y, grayArray);
+				}
+			}
+		}
+		return grayImage;
+	}
+
+	/**
+	 * Create an empty TYPE_USHORT_GRAY image carrying the adjustment in its {@link #ADJUSTMENT_PROPERTY} property.
+	 * 
+	 * @param width width of image
+	 * @param height height of image
+	 * @return image
+	 */
+	protected BufferedImage createGray16Image(int width, int height)
+	{
+		BufferedImage template = createImage(width, height, BufferedImage.TYPE_USHORT_GRAY);
+		Hashtable<String, Object> properties = new Hashtable<String, Object>();
+		properties.put(ADJUSTMENT_PROPERTY, Integer.valueOf(getAdjustment()));
+		return new BufferedImage(template.getColorModel(), template.getRaster(), false, properties);
+	}
+
 	/**
 	 * Create image using windowing instructions in Dicom object.
 	 * <p>
 	 * In this method, the rescale and windowing operations are carried out internally rather than by the DCM4CHE2 code.
+	 * If the Dicom object has modality, VOI or presentation LUTs, they are applied through the table compiled by
+	 * {@link LutChain}.
 	 * </p>
 	 * 
 	 * @param raster Raster object from PixelData fragment
@@ -1058,6 +1409,9 @@ public class RasterProcessor
 	 */
 	public BufferedImage buildWindowed(Raster raster)
 	{
+		if (isBulkCompatible(raster) || lutChain != null) {
+			return buildWindowedBulk(raster);
+		}
 		int[] dummy1 = new int[1];
 		int[] gray = new int[1];
 		if (windowCenter[0] < -10 || windowWidth[0] < -10) {
@@ -1079,7 +1433,7 @@ public class RasterProcessor
 			// logger.info("WindowWidth is " + Float.toString(windowWidth[0]));
 			// logger.info("WindowCenter is " + Float.toString(windowCenter[0]));
 		}
-		BufferedImage working = new BufferedImage(raster.getWidth(), raster.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+		BufferedImage working = createImage(raster.getWidth(), raster.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
 		WritableRaster writable = working.getRaster();
 		float a01 = 255.0f * rescaleSlope / windowWidth[0];
 		float a04 = 255.0f / windowWidth[0]
@@ -1101,6 +1455,467 @@ public class RasterProcessor
 		return working;
 	}
 
+	/**
+	 * Indicates whether the samples of a raster can be read directly from its backing array.
+	 * <p>
+	 * This is the case for single band rasters using a {@link ComponentSampleModel} over a byte, short or unsigned short
+	 * data buffer, which covers the grayscale rasters returned by the DCM4CHE2 image reader, or over a
+	 * {@link MappedDataBuffer}, which covers frames mapped by {@link DicomReader}. Other rasters are handled by the
+	 * per-pixel code in the build methods.
+	 * </p>
+	 * 
+	 * @param raster raster to be examined
+	 * @return true if the bulk kernels can be used
+	 */
+	protected boolean isBulkCompatible(Raster raster)
+	{
+		if (raster.getNumBands() != 1 || !(raster.getSampleModel() instanceof ComponentSampleModel)) {
+			return false;
+		}
+		DataBuffer buffer = raster.getDataBuffer();
+		return buffer instanceof DataBufferUShort || buffer instanceof DataBufferShort || buffer instanceof DataBufferByte
+				|| buffer instanceof MappedDataBuffer;
+	}
+
+	/**
+	 * Copy one row of PixelData values from the backing array of the raster.
+	 * <p>
+	 * The values are the same as those returned by {@link Raster#getPixel(int, int, int[])} for the row. The raster must
+	 * satisfy {@link #isBulkCompatible(Raster)}.
+	 * </p>
+	 * 
+	 * @param raster raster from grayscale image
+	 * @param y row number, relative to the top of the raster
+	 * @param samples array receiving one value for each column
+	 */
+	protected void readRow(Raster raster, int y, int[] samples)
+	{
+		ComponentSampleModel sampleModel = (ComponentSampleModel)raster.getSampleModel();
+		DataBuffer buffer = raster.getDataBuffer();
+		int bank = sampleModel.getBankIndices()[0];
+		int pixelStride = sampleModel.getPixelStride();
+		int index = buffer.getOffsets()[bank]
+				+ sampleModel.getOffset(raster.getMinX() - raster.getSampleModelTranslateX(),
+						raster.getMinY() + y - raster.getSampleModelTranslateY());
+		int width = raster.getWidth();
+
+		if (buffer instanceof MappedDataBuffer) {
+			((MappedDataBuffer)buffer).getElems(index, pixelStride, samples, width);
+		} else if (buffer instanceof DataBufferUShort) {
+			short[] data = ((DataBufferUShort)buffer).getData(bank);
+			for (int x = 0; x < width; x++, index += pixelStride) {
+				samples[x] = data[index] & 0xffff;
+			}
+		} else if (buffer instanceof DataBufferShort) {
+			short[] data = ((DataBufferShort)buffer).getData(bank);
+			for (int x = 0; x < width; x++, index += pixelStride) {
+				samples[x] = data[index];
+			}
+		} else {
+			byte[] data = ((DataBufferByte)buffer).getData(bank);
+			for (int x = 0; x < width; x++, index += pixelStride) {
+				samples[x] = data[index] & 0xff;
+			}
+		}
+	}
+
+	/**
+	 * Bulk version of {@link #buildPng(Raster)}, {@link #buildRawS(Raster)} and {@link #buildScaled(Raster)}.
+	 * <p>
+	 * The raster is processed one row at a time and the high and low order bits are written directly into the backing
+	 * array of the TYPE_3BYTE_BGR image.
+	 * </p>
+	 * 
+	 * @param raster raster from grayscale image
+	 * @param rescale true if the rescale slope and intercept are to be applied
+	 * @param markAdjustment true if the adjustment is to be placed in the blue channel of the first two pixels
+	 * @return bgr image with two channels used
+	 */
+	protected BufferedImage buildPackedBulk(Raster raster, boolean rescale, boolean markAdjustment)
+	{
+		BufferedImage pngImage = createImage(raster.getWidth(), raster.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+		packRows(raster, pngImage.getRaster(), rescale, 0, raster.getHeight());
+		if (markAdjustment) {
+			markAdjustment(pngImage.getRaster());
+		}
+		return pngImage;
+	}
+
+	/**
+	 * Pack a band of rows of the raster into the high and low order channels of a TYPE_3BYTE_BGR raster.
+	 * <p>
+	 * Different bands of the same image may be packed concurrently.
+	 * </p>
+	 * 
+	 * @param raster raster from grayscale image
+	 * @param pngRaster raster of the TYPE_3BYTE_BGR image
+	 * @param rescale true if the rescale slope and intercept are to be applied
+	 * @param firstRow first row of the band
+	 * @param endRow row following the last row of the band
+	 */
+	protected void packRows(Raster raster, WritableRaster pngRaster, boolean rescale, int firstRow, int endRow)
+	{
+		int width = raster.getWidth();
+		ComponentSampleModel pngSampleModel = (ComponentSampleModel)pngRaster.getSampleModel();
+		byte[] bgr = ((DataBufferByte)pngRaster.getDataBuffer()).getData();
+		int[] bandOffsets = pngSampleModel.getBandOffsets();
+		int highOffset = bandOffsets[0];
+		int lowOffset = bandOffsets[1];
+		int pixelStride = pngSampleModel.getPixelStride();
+		int scanlineStride = pngSampleModel.getScanlineStride();
+		int[] samples = acquireBuffer(width);
+		int[] table = useLookupTables ? RasterLookupTableCache.getInstance().getPixelValueTable(this, rescale) : null;
+
+		for (int y = firstRow; y < endRow; y++) {
+			readRow(raster, y, samples);
+			int index = y * scanlineStride;
+			if (table != null) {
+				for (int x = 0; x < width; x++, index += pixelStride) {
+					int pixelValue = table[samples[x] & 0xffff];
+					bgr[index + highOffset] = (byte)(pixelValue >> 8);
+					bgr[index + lowOffset] = (byte)pixelValue;
+				}
+				continue;
+			}
+			for (int x = 0; x < width; x++, index += pixelStride) {
+				int pixelValue = dataValue(samples[x]);
+				if (rescale) {
+					pixelValue = (int)(rescaleSlope * pixelValue + rescaleIntercept);
+				}
+				bgr[index + highOffset] = (byte)high(pixelValue);
+				bgr[index + lowOffset] = (byte)low(pixelValue);
+			}
+		}
+		releaseBuffer(samples);
+	}
+
+	/**
+	 * Write a band of rows of the raster into a TYPE_USHORT_GRAY raster.
+	 * <p>
+	 * Different bands of the same image may be written concurrently.
+	 * </p>
+	 * 
+	 * @param raster raster from grayscale image
+	 * @param grayRaster raster of the TYPE_USHORT_GRAY image
+	 * @param firstRow first row of the band
+	 * @param endRow row following the last row of the band
+	 */
+	protected void gray16Rows(Raster raster, WritableRaster grayRaster, int firstRow, int endRow)
+	{
+		int width = raster.getWidth();
+		ComponentSampleModel graySampleModel = (ComponentSampleModel)grayRaster.getSampleModel();
+		short[] gray = ((DataBufferUShort)grayRaster.getDataBuffer()).getData();
+		int scanlineStride = graySampleModel.getScanlineStride();
+		int[] samples = acquireBuffer(width);
+		int[] table = useLookupTables ? RasterLookupTableCache.getInstance().getPixelValueTable(this, false) : null;
+
+		for (int y = firstRow; y < endRow; y++) {
+			readRow(raster, y, samples);
+			int index = y * scanlineStride;
+			if (table != null) {
+				for (int x = 0; x < width; x++) {
+					gray[index + x] = (short)table[samples[x] & 0xffff];
+				}
+			} else {
+				for (int x = 0; x < width; x++) {
+					gray[index + x] = (short)dataValue(samples[x]);
+				}
+			}
+		}
+		releaseBuffer(samples);
+	}
+
+	/**
+	 * Place the adjustment in the blue channel of the first two pixels of a packed image, as done by
+	 * {@link #buildPng(Raster)}.
+	 * 
+	 * @param pngRaster raster of the TYPE_3BYTE_BGR image
+	 */
+	protected void markAdjustment(WritableRaster pngRaster)
+	{
+		if (pngRaster.getHeight() == 0) {
+			return;
+		}
+		ComponentSampleModel pngSampleModel = (ComponentSampleModel)pngRaster.getSampleModel();
+		byte[] bgr = ((DataBufferByte)pngRaster.getDataBuffer()).getData();
+		int adjustmentOffset = pngSampleModel.getBandOffsets()[2];
+		bgr[adjustmentOffset] = (byte)high(getAdjustment());
+		if (pngRaster.getWidth() > 1) {
+			bgr[pngSampleModel.getPixelStride() + adjustmentOffset] = (byte)low(getAdjustment());
+		}
+	}
+
+	/**
+	 * Bulk version of {@link #buildWindowed(Raster)}.
+	 * <p>
+	 * The raster is processed one row at a time and the windowed values are written directly into the backing array of
+	 * the TYPE_BYTE_GRAY image.
+	 * </p>
+	 * 
+	 * @param raster Raster object from PixelData fragment
+	 * @return image with windowing applied
+	 */
+	protected BufferedImage buildWindowedBulk(Raster raster)
+	{
+		calculateWindow(raster);
+		BufferedImage working = createImage(raster.getWidth(), raster.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+		windowRows(raster, working.getRaster(), 0, raster.getHeight());
+		return working;
+	}
+
+	/**
+	 * Calculate the window center and width from the gray level histogram if they are not in the Dicom object.
+	 * <p>
+	 * The histogram is accumulated in one pass over the raster, or taken from {@link GrayLevelHistogramCache} when
+	 * {@link #cacheSeriesHistogram} is set and another frame of the series has already been processed.
+	 * </p>
+	 * 
+	 * @param raster Raster object from PixelData fragment
+	 */
+	protected void calculateWindow(Raster raster)
+	{
+		if (lutChain != null && lutChain.hasVoiTable()) {
+			return;
+		}
+		if (windowCenter[0] < -10 || windowWidth[0] < -10) {
+			GrayLevelHistogram histogram = getHistogram(raster);
+			if (lutChain != null && lutChain.hasModalityTable()) {
+				calculateModalityWindow(histogram);
+				return;
+			}
+			if (autoWindow == AutoWindow.PERCENTILE && histogram.getCount() > 0) {
+				int low = histogram.getPercentile(lowPercentile);
+				int high = histogram.getPercentile(highPercentile);
+				windowWidth[0] = Math.max(high - low, 1) * rescaleSlope;
+				windowCenter[0] = (high + low) * rescaleSlope / 2.0f + rescaleIntercept;
+				return;
+			}
+			if (histogram.getCount() > 0) {
+				if (histogram.getMaximum() > maximumGrayLevel) {
+					maximumGrayLevel = histogram.getMaximum();
+				}
+				if (histogram.getMinimum() < minimumGrayLevel) {
+					minimumGrayLevel = histogram.getMinimum();
+				}
+			}
+			windowWidth[0] = (maximumGrayLevel - minimumGrayLevel) * rescaleSlope;
+			windowCenter[0] = (maximumGrayLevel + minimumGrayLevel) * rescaleSlope / 2.0f + rescaleIntercept;
+		}
+	}
+
+	/**
+	 * Calculate the window from the range of modality values when the modality stage is a lookup table, which need not
+	 * be linear or even monotonic.
+	 * 
+	 * @param histogram gray level histogram of the raster
+	 */
+	protected void calculateModalityWindow(GrayLevelHistogram histogram)
+	{
+		if (histogram.getCount() == 0) {
+			windowWidth[0] = 1.0f;
+			windowCenter[0] = lutChain.modalityValue(0);
+			return;
+		}
+		int low = histogram.getMinimum();
+		int high = histogram.getMaximum();
+		if (autoWindow == AutoWindow.PERCENTILE) {
+			low = histogram.getPercentile(lowPercentile);
+			high = histogram.getPercentile(highPercentile);
+		}
+		float minimum = Float.MAX_VALUE;
+		float maximum = -Float.MAX_VALUE;
+		for (int value = low; value <= high; value++) {
+			float modality = lutChain.modalityValue(value);
+			minimum = Math.min(minimum, modality);
+			maximum = Math.max(maximum, modality);
+		}
+		windowWidth[0] = Math.max(maximum - minimum, 1.0f);
+		windowCenter[0] = (maximum + minimum) / 2.0f;
+	}
+
+	/**
+	 * Get the table compiled from {@link #lutChain} for the current window, compiling it again if the window has changed.
+	 * 
+	 * @return table indexed by the low 16 bits of the PixelData value
+	 */
+	protected synchronized byte[] getDisplayTable()
+	{
+		if (displayTable == null || displayTableCenter != windowCenter[0] || displayTableWidth != windowWidth[0]) {
+			displayTable = lutChain.compile();
+			displayTableCenter = windowCenter[0];
+			displayTableWidth = windowWidth[0];
+		}
+		return displayTable;
+	}
+
+	/**
+	 * Get the gray level histogram for the raster, using the cached histogram of the series when permitted.
+	 * 
+	 * @param raster Raster object from PixelData fragment
+	 * @return histogram
+	 */
+	protected GrayLevelHistogram getHistogram(Raster raster)
+	{
+		if (!cacheSeriesHistogram || seriesInstanceUID == null) {
+			return buildHistogram(raster);
+		}
+		String seriesKey = seriesInstanceUID + "/" + pixelRepresentation + "/" + bitsStored + "/" + adjustment;
+		GrayLevelHistogramCache cache = GrayLevelHistogramCache.getInstance();
+		GrayLevelHistogram histogram = cache.getHistogram(seriesKey);
+		if (histogram == null) {
+			histogram = buildHistogram(raster);
+			cache.setHistogram(seriesKey, histogram);
+		}
+		return histogram;
+	}
+
+	/**
+	 * Accumulate the gray level histogram of the raster in a single pass.
+	 * 
+	 * @param raster Raster object from PixelData fragment
+	 * @return histogram
+	 */
+	public GrayLevelHistogram buildHistogram(Raster raster)
+	{
+		int width = raster.getWidth();
+		int[] samples = acquireBuffer(width);
+		int[] rawCounts = acquireBuffer(RasterLookupTableCache.TABLE_SIZE);
+		Arrays.fill(rawCounts, 0);
+		boolean bulk = isBulkCompatible(raster);
+		for (int y = 0; y < raster.getHeight(); y++) {
+			if (bulk) {
+				readRow(raster, y, samples);
+			} else {
+				raster.getSamples(raster.getMinX(), raster.getMinY() + y, width, 1, 0, samples);
+			}
+			for (int x = 0; x < width; x++) {
+				rawCounts[samples[x] & 0xffff]++;
+			}
+		}
+		GrayLevelHistogram histogram = new GrayLevelHistogram(rawCounts, this);
+		releaseBuffer(rawCounts);
+		releaseBuffer(samples);
+		return histogram;
+	}
+
+	/**
+	 * Apply the window to a band of rows of the raster, writing into a TYPE_BYTE_GRAY raster.
+	 * <p>
+	 * The window must already be set, see {@link #calculateWindow(Raster)}. If there is a {@link #lutChain}, its compiled
+	 * table replaces the window arithmetic. Different bands of the same image may be windowed concurrently.
+	 * </p>
+	 * 
+	 * @param raster Raster object from PixelData fragment
+	 * @param grayRaster raster of the TYPE_BYTE_GRAY image
+	 * @param firstRow first row of the band
+	 * @param endRow row following the last row of the band
+	 */
+	protected void windowRows(Raster raster, WritableRaster grayRaster, int firstRow, int endRow)
+	{
+		int width = raster.getWidth();
+		int[] samples = acquireBuffer(width);
+		ComponentSampleModel graySampleModel = (ComponentSampleModel)grayRaster.getSampleModel();
+		byte[] gray = ((DataBufferByte)grayRaster.getDataBuffer()).getData();
+		int scanlineStride = graySampleModel.getScanlineStride();
+		if (lutChain != null) {
+			byte[] table = getDisplayTable();
+			boolean bulk = isBulkCompatible(raster);
+			for (int y = firstRow; y < endRow; y++) {
+				if (bulk) {
+					readRow(raster, y, samples);
+				} else {
+					raster.getSamples(raster.getMinX(), raster.getMinY() + y, width, 1, 0, samples);
+				}
+				int index = y * scanlineStride;
+				for (int x = 0; x < width; x++) {
+					gray[index + x] = table[samples[x] & 0xffff];
+				}
+			}
+			releaseBuffer(samples);
+			return;
+		}
+		if (useLookupTables) {
+			byte[] table = RasterLookupTableCache.getInstance().getWindowTable(this);
+			for (int y = firstRow; y < endRow; y++) {
+				readRow(raster, y, samples);
+				int index = y * scanlineStride;
+				for (int x = 0; x < width; x++) {
+					gray[index + x] = table[samples[x] & 0xffff];
+				}
+			}
+			releaseBuffer(samples);
+			return;
+		}
+		float a01 = 255.0f * rescaleSlope / windowWidth[0];
+		float a04 = 255.0f / windowWidth[0]
+				* (rescaleIntercept - rescaleSlope * adjustment - windowCenter[0] + 0.5f * windowWidth[0]);
+		for (int y = firstRow; y < endRow; y++) {
+			readRow(raster, y, samples);
+			int index = y * scanlineStride;
+			for (int x = 0; x < width; x++) {
+				int value = (int)(a01 * dataValue(samples[x]) + a04);
+				if (value > 255) {
+					value = 255;
+				} else if (value < 0) {
+					value = 0;
+				}
+				gray[index + x] = (byte)value;
+			}
+		}
+		releaseBuffer(samples);
+	}
+
+	/**
+	 * Compile the table used by the bulk kernels for the packed PNG images.
+	 * <p>
+	 * Entry i holds {@link #dataValue(int)} of i, followed by the rescale when requested. The values returned by the
+	 * raster for signed short data buffers are sign extended, but {@link #dataValue(int)} only depends on their low 16
+	 * bits, so the table is indexed by the low 16 bits of the sample.
+	 * </p>
+	 * 
+	 * @param rescale true if the rescale slope and intercept are to be applied
+	 * @return table with {@link RasterLookupTableCache#TABLE_SIZE} entries
+	 */
+	protected int[] compilePixelValueTable(boolean rescale)
+	{
+		int[] table = new int[RasterLookupTableCache.TABLE_SIZE];
+		for (int i = 0; i < table.length; i++) {
+			int pixelValue = dataValue(i);
+			if (rescale) {
+				pixelValue = (int)(rescaleSlope * pixelValue + rescaleIntercept);
+			}
+			table[i] = pixelValue;
+		}
+		return table;
+	}
+
+	/**
+	 * Compile the table used by {@link #buildWindowed(Raster)} for the current window settings.
+	 * <p>
+	 * Entry i holds the 0-255 gray level for a PixelData value whose low 16 bits are i, combining sign handling, the
+	 * adjustment, rescale slope and intercept, window center and width and the clamp.
+	 * </p>
+	 * 
+	 * @return table with {@link RasterLookupTableCache#TABLE_SIZE} entries
+	 */
+	protected byte[] compileWindowTable()
+	{
+		byte[] table = new byte[RasterLookupTableCache.TABLE_SIZE];
+		float a01 = 255.0f * rescaleSlope / windowWidth[0];
+		float a04 = 255.0f / windowWidth[0]
+				* (rescaleIntercept - rescaleSlope * adjustment - windowCenter[0] + 0.5f * windowWidth[0]);
+		for (int i = 0; i < table.length; i++) {
+			int value = (int)(a01 * dataValue(i) + a04);
+			if (value > 255) {
+				value = 255;
+			} else if (value < 0) {
+				value = 0;
+			}
+			table[i] = (byte)value;
+		}
+		return table;
+	}
+
 	/**
 	 * Test conversion back and forth between two eight bit and one sixteen bit value.
 	 * 
@@ -104,6 +104,7 @@
  *******************************************************************************/
 package edu.stanford.epad.common.pixelmed;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -230,10 +231,112 @@ public class PixelMedUtils
 		return attributeList;
 	}
 
+	/**
+	 * Read the attributes of a DICOM file up to a set of tags.
+	 * <p>
+	 * Reading stops at the first top-level attribute following the last of the requested tags, and never goes past
+	 * PixelData, so that the pixels of large files are not read to obtain header values. The list holds the requested
+	 * attributes and all those preceding them.
+	 * </p>
+	 * 
+	 * @param dicomFilePath path of DICOM file
+	 * @param tags tags to be read
+	 * @return attributes read
+	 * @throws IOException
+	 * @throws DicomException
+	 */
+	public static AttributeList readPartialAttributeListFromDicomFile(String dicomFilePath, AttributeTag... tags)
+			throws IOException, DicomException
+	{
+		AttributeTag lastTag = TagFromName.PixelData;
+		if (tags.length > 0) {
+			lastTag = tags[0];
+			for (AttributeTag tag : tags) {
+				if (tag.compareTo(lastTag) > 0)
+					lastTag = tag;
+			}
+		}
+		final AttributeTag stopAfterTag = lastTag;
+		AttributeList attributeList = new AttributeList();
+		DicomInputStream dis = null;
+
+		try {
+			dis = new DicomInputStream(new BufferedInputStream(new FileInputStream(dicomFilePath)));
+			attributeList.read(dis, new AttributeList.ReadTerminationStrategy() {
+				@Override
+				public boolean terminate(AttributeList attributeList, AttributeTag tag, long bytesRead)
+				{
+					return tag.compareTo(stopAfterTag) > 0 || tag.equals(TagFromName.PixelData);
+				}
+			});
+		} finally {
+			IOUtils.closeQuietly(dis);
+		}
+		return attributeList;
+	}
+
+	/**
+	 * SOP class and number of frames of a DICOM file, as returned by {@link PixelMedUtils#classify(File)}.
+	 */
+	public static final class DicomClassification
+	{
+		private final String sopClassUID;
+		private final int numberOfFrames;
+
+		DicomClassification(String sopClassUID, int numberOfFrames)
+		{
+			this.sopClassUID = sopClassUID;
+			this.numberOfFrames = numberOfFrames;
+		}
+
+		public String getSOPClassUID()
+		{
+			return sopClassUID;
+		}
+
+		public int getNumberOfFrames()
+		{
+			return numberOfFrames;
+		}
+
+		public boolean isSegmentationObject()
+		{
+			return sopClassUID.equals(SOPClass.SegmentationStorage);
+		}
+
+		public boolean isMultiframe()
+		{
+			return numberOfFrames > 1;
+		}
+
+		public boolean isEnhancedMultiframeImage()
+		{
+			return SOPClass.isEnhancedMultiframeImageStorage(sopClassUID);
+		}
+	}
+
+	/**
+	 * Determine whether a file is a segmentation object, a multi-frame file and an enhanced multi-frame image with a
+	 * single read of the header up to NumberOfFrames.
+	 * 
+	 * @param dicomFile DICOM file
+	 * @return classification
+	 * @throws IOException
+	 * @throws DicomException
+	 */
+	public static DicomClassification classify(File dicomFile) throws IOException, DicomException
+	{
+		AttributeList list = readPartialAttributeListFromDicomFile(dicomFile.getAbsolutePath(), TagFromName.SOPClassUID,
+				TagFromName.NumberOfFrames);
+		String sopClassUID = Attribute.getSingleStringValueOrEmptyString(list, TagFromName.SOPClassUID);
+		int numberOfFrames = Attribute.getSingleIntegerValueOrDefault(list, TagFromName.NumberOfFrames, 1);
+		return new DicomClassification(sopClassUID, numberOfFrames);
+	}
+
 	public static boolean isDicomSegmentationObject(String filePath)
 	{
 		try {
-			AttributeList attributeList = readAttributeListFromDicomFile(filePath);
+			AttributeList attributeList = readPartialAttributeListFromDicomFile(filePath, TagFromName.SOPClassUID);
 			String sopClassUID = Attribute.getSingleStringValueOrEmptyString(attributeList, TagFromName.SOPClassUID);
 
 			return sopClassUID.equals(SOPClass.SegmentationStorage);
@@ -246,7 +349,7 @@ public class PixelMedUtils
 	public static boolean isMultiframedDicom(String filePath)
 	{
 		try {
-			AttributeList list = readAttributeListFromDicomFile(filePath);
+			AttributeList list = readPartialAttributeListFromDicomFile(filePath, TagFromName.NumberOfFrames);
 			int numberOfFrames = Attribute.getSingleIntegerValueOrDefault(list, TagFromName.NumberOfFrames, 1);
 			log.debug("Number of frames:" + numberOfFrames + " file:" + filePath);
 			return numberOfFrames > 1;
@@ -258,7 +361,7 @@ public class PixelMedUtils
 	public static boolean isEnhancedMultiframeImage(String filePath)
 	{
 		try {
-			AttributeList list = readAttributeListFromDicomFile(filePath);
+			AttributeList list = readPartialAttributeListFromDicomFile(filePath, TagFromName.SOPClassUID);
 			String sopClassUID = Attribute.getSingleStringValueOrEmptyString(list, TagFromName.SOPClassUID);
 
 			return SOPClass.isEnhancedMultiframeImageStorage(sopClassUID);
@@ -112,17 +112,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
 
 import org.apache.commons.io.IOUtils;
 
@@ -140,7 +134,6 @@ import com.pixelmed.dicom.DicomException;
 import com.pixelmed.dicom.DicomInputStream;
 import com.pixelmed.dicom.DicomOutputStream;
 import com.pixelmed.dicom.FileMetaInformation;
-import com.pixelmed.dicom.GeometryOfSliceFromAttributeList;
 import com.pixelmed.dicom.IntegerStringAttribute;
 import com.pixelmed.dicom.LongStringAttribute;
 import com.pixelmed.dicom.OtherByteAttribute;
@@ -159,7 +152,6 @@ import com.pixelmed.dicom.UniqueIdentifierAttribute;
 import com.pixelmed.dicom.UnsignedLongAttribute;
 import com.pixelmed.dicom.UnsignedShortAttribute;
 import com.pixelmed.dicom.VersionAndConstants;
-import com.pixelmed.geometry.GeometryOfSlice;
 import com.pixelmed.utils.CopyStream;
 
 import edu.stanford.epad.common.util.EPADLogger;
@@ -1551,64 +1543,15 @@ public class SegmentationObjectsFileWriter
 	}
 
 	private int [] sort_frames_by_position(AttributeList geometry, double [][] positions, int frame_num) throws DicomException {
-		int [] index = new int[frame_num];
-		double [] distances = new double[frame_num];
-		
-	    class DoubleArrayComparator implements Comparator <List <Double>> {
-	        public int compare(List <Double> o1, List <Double> o2) {
-	        	int val;
-	            if(o1.get(0) > o2.get(0))
-	            	val = 1;
-	            else if(o1.get(0) < o2.get(0))
-	            	val = -1;
-	            else {
-		            if(o1.get(1) > o2.get(1))
-		            	val = 1;
-		            else if(o1.get(1) < o2.get(1))
-		            	val = -1;
-		            else
-		            	val = 0;
-	            }
-	            return val;
-	        }
-	    }
-	    
-		SortedMap <ArrayList <Double>, Integer> sorting = new TreeMap <ArrayList <Double>, Integer> (new DoubleArrayComparator());
-		GeometryOfSlice slice_geometry;
-		AttributeList geometry_list = (AttributeList)geometry.clone();
-		ArrayList <Double> key;
-		
-		for(int i = 0; i < frame_num; i++) {
-			Attribute a = new DecimalStringAttribute(TagFromName.ImagePositionPatient);
-			if(positions != null) {
-				a.addValue(positions[i][0]); 
-				a.addValue(positions[i][1]); 
-				a.addValue(positions[i][2]);
-			} else {
-				a.addValue(0); a.addValue(0); a.addValue(0);
-			}
-			geometry_list.put(a);
-			slice_geometry = new GeometryOfSliceFromAttributeList(geometry_list);
-			distances[i] = slice_geometry.getDistanceAlongNormalFromOrigin();
-			
-			key = new ArrayList <Double> (2); 
-			key.add(0, distances[i]); key.add(1, (double)i);  
-			sorting.put(key, 0);
-		}
-
-		// k will be the index of sorted keys.
-		int k = 1;
-		for (Map.Entry <ArrayList <Double>, Integer> entry : sorting.entrySet()) {
-	        sorting.put(entry.getKey(), k++);
-		}
-		
-		for(int i = 0; i < frame_num; i++) {
-			key = new ArrayList <Double> (2); 
-			key.add(0, distances[i]); key.add(1, (double)i);  
-			index[i] = sorting.get(key);
-		}
-		
-		return index;
+		double [][] frame_positions = new double[frame_num][];
+		if (positions != null)
+			System.arraycopy(positions, 0, frame_positions, 0, frame_num);
+		double [] normal = SliceOrdering.getNormal(Attribute.getDoubleValues(geometry, TagFromName.ImageOrientationPatient));
+		if (normal == null)
+			return sort_frames_by_position(positions, frame_num);
+		// GeometryOfSlice negates the z component of its normal; do the same so that the in-stack positions are unchanged
+		normal[2] = -normal[2];
+		return SliceOrdering.byDistanceAlongNormal(frame_positions, normal).getRanks();
 	}
 	/**
 	 * This demo gets segmentation maps from map_file, then inserts the maps twice as two segments.
@@ -107,25 +107,36 @@ package edu.stanford.epad.common.pixelmed;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.imageio.ImageIO;
 
-import org.apache.commons.io.IOUtils;
-
 import com.pixelmed.anatproc.CodedConcept;
 import com.pixelmed.dicom.Attribute;
 import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
 import com.pixelmed.dicom.DicomException;
-import com.pixelmed.dicom.DicomInputStream;
 import com.pixelmed.dicom.TagFromName;
 
+import edu.stanford.epad.common.dicom.ParallelRasterRenderer;
 import edu.stanford.epad.common.util.EPADLogger;
 
 /**
@@ -138,6 +149,7 @@ import edu.stanford.epad.common.util.EPADLogger;
 public class TIFFMasksToDSOConverter
 {
 	private AttributeList[] dicomAttributes;
+	private AttributeList contextAttributes;
 	private final short[] orientation = new short[] { 1, 0, 0, 0, 0, 1 };
 	private double[] spacing = new double[] { 0.65, 0.8 };
 	private double thickness = 0.5;
@@ -148,6 +160,59 @@ public class TIFFMasksToDSOConverter
 	private static final EPADLogger log = EPADLogger.getInstance();
 	public static HashMap<String,Integer> firstFrames= new HashMap<>();
 
+	/** Attributes kept for each source image, besides the whole header of the first. */
+	private static final AttributeTag[] SLICE_TAGS = { TagFromName.SOPInstanceUID, TagFromName.InstanceNumber,
+			TagFromName.ImagePositionPatient, TagFromName.ImageOrientationPatient, TagFromName.SliceLocation };
+
+	/** Default bound on the memory taken by the masks being decoded ahead of the frame being assembled. */
+	public static final long DEFAULT_MASK_MEMORY_BUDGET = 256L * 1024 * 1024;
+
+	/**
+	 * Number of threads of the pool shared by converters created without an explicit pool. Decoding the masks and
+	 * reading the source headers block on the files, so they are kept off the render pool of
+	 * {@link ParallelRasterRenderer}, and the pool is bounded so that conversions leave processors to the renders.
+	 */
+	public static final int DEFAULT_POOL_THREADS = Math.max(1,
+			Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+	private static final ExecutorService sharedPool = createPool(DEFAULT_POOL_THREADS);
+
+	private ExecutorService maskDecodingPool = sharedPool;
+	private long maskMemoryBudget = DEFAULT_MASK_MEMORY_BUDGET;
+
+	public ExecutorService getMaskDecodingPool()
+	{
+		return maskDecodingPool;
+	}
+
+	/**
+	 * Set the pool that decodes and packs the mask files concurrently, and reads the headers of the source images. The
+	 * frames are still assembled in the order of the mask files.
+	 * 
+	 * @param pool pool, by default one of {@link #DEFAULT_POOL_THREADS} daemon threads shared by all converters, or
+	 *          null to decode the masks and read the headers one after the other on the calling thread
+	 */
+	public void setMaskDecodingPool(ExecutorService pool)
+	{
+		this.maskDecodingPool = pool;
+	}
+
+	public long getMaskMemoryBudget()
+	{
+		return maskMemoryBudget;
+	}
+
+	/**
+	 * Set the memory that the masks decoded ahead may take. The number of masks in flight is the budget divided by the
+	 * decoded and packed size of the first mask, and at least one.
+	 * 
+	 * @param bytes budget in bytes
+	 */
+	public void setMaskMemoryBudget(long bytes)
+	{
+		this.maskMemoryBudget = bytes;
+	}
+
 	/**
 	 * @param maskFiles: Array of the TIFF files which contain the masks.
 	 * @param dicomFiles: Array of the original DICOM files.
@@ -273,7 +338,7 @@ public class TIFFMasksToDSOConverter
 	{
 		try {
 			if (dicomAttributes == null) getAttributesFromDICOMFiles(dicomFilePaths);
-			SegmentationObjectsFileWriter dsoWriter = new SegmentationObjectsFileWriter(dicomAttributes, orientation,
+			SegmentationObjectsFileWriter dsoWriter = new SegmentationObjectsFileWriter(getSourceAttributes(), orientation,
 					spacing, thickness, dsoSeriesDescription, dsoSeriesUID, dsoInstanceUID);
 			CodedConcept category = new CodedConcept("C0085089" /* conceptUniqueIdentifier */, "260787004" /* SNOMED CID */,
 					"SRT" /* codingSchemeDesignator */, "SNM3" /* legacyCodingSchemeDesignator */,
@@ -305,7 +370,7 @@ public class TIFFMasksToDSOConverter
 	{
 		try {
 			if (dicomAttributes == null) getAttributesFromDICOMFiles(dicomFilePaths);
-			SegmentationObjectsFileWriter dsoWriter = new SegmentationObjectsFileWriter(dicomAttributes, orientation,
+			SegmentationObjectsFileWriter dsoWriter = new SegmentationObjectsFileWriter(getSourceAttributes(), orientation,
 					spacing, thickness, dsoSeriesDescription, dsoSeriesUID, dsoInstanceUID);
 			CodedConcept category = new CodedConcept("C0085089" /* conceptUniqueIdentifier */, "260787004" /* SNOMED CID */,
 					"SRT" /* codingSchemeDesignator */, "SNM3" /* legacyCodingSchemeDesignator */,
@@ -363,18 +428,11 @@ public class TIFFMasksToDSOConverter
 	private int getAttributesFromDICOMFiles(List<String> dicomFilePaths) throws FileNotFoundException, IOException,
 	DicomException
 	{
-		AttributeList localDICOMAttributes = new AttributeList();
+		// Only the header of the first file is kept whole; it gives the context of the DSO
 		String dicomInputFile = dicomFilePaths.get(0);
-
-		DicomInputStream dicomInputStream = null;
-		try {
-			dicomInputStream = new DicomInputStream(new FileInputStream(dicomInputFile));
-			localDICOMAttributes.read(dicomInputStream);
-		} finally {
-			IOUtils.closeQuietly(dicomInputStream);
-		}
+		AttributeList localDICOMAttributes = PixelMedUtils.readPartialAttributeListFromDicomFile(dicomInputFile);
+		this.contextAttributes = localDICOMAttributes;
 		if (dicomAttributes == null) dicomAttributes = new AttributeList[dicomFilePaths.size()];
-		this.dicomAttributes[0] = (AttributeList)localDICOMAttributes.clone();
 		this.imageWidth = (short)Attribute.getSingleIntegerValueOrDefault(localDICOMAttributes, TagFromName.Columns, 1);
 		this.imageHeight = (short)Attribute.getSingleIntegerValueOrDefault(localDICOMAttributes, TagFromName.Rows, 1);
 		this.numberOfFrames = (short)dicomFilePaths.size();
@@ -412,23 +470,20 @@ public class TIFFMasksToDSOConverter
 			}
 		}
 
-		try { // Get sequence format. Get position of each frame.
+		{ // Get sequence format. Get position of each frame.
 			positions = new double[numberOfFrames][3];
 			sliceLocations = new double[numberOfFrames];
 			int[] instanceNos = new int[dicomFilePaths.size()];
+			boolean hasPositions = true;
+			AttributeList[] sliceAttributes = readSliceAttributes(dicomFilePaths, localDICOMAttributes);
 			for (int i = 0; i < dicomFilePaths.size(); i++) {
-				dicomInputFile = dicomFilePaths.get(i);
-				dicomInputStream = new DicomInputStream(new FileInputStream(dicomInputFile));
-				localDICOMAttributes.clear();
-				localDICOMAttributes.read(dicomInputStream);
+				localDICOMAttributes = sliceAttributes[i];
 				Attribute attribute = localDICOMAttributes.get(TagFromName.ImagePositionPatient);
+				hasPositions &= attribute != null;
 				if (attribute != null)
 					this.positions[i] = attribute.getDoubleValues();
 				sliceLocations[i] = Attribute.getSingleDoubleValueOrDefault(localDICOMAttributes, TagFromName.SliceLocation, 0);
-				if (i > 0)
-				{
-					dicomAttributes[i] = (AttributeList) localDICOMAttributes.clone();
-				}
+				dicomAttributes[i] = localDICOMAttributes;
 				instanceNos[i] = Attribute.getSingleIntegerValueOrDefault(localDICOMAttributes, TagFromName.InstanceNumber, 1);
 				log.info("instance "+i+ " no:"+instanceNos[i]);
 
@@ -436,78 +491,135 @@ public class TIFFMasksToDSOConverter
 			//added slicelocation for sorting, we should actually use position and orientation for sorting 
 			//but the defaultdcm4che operations do not have that info
 			
-			boolean fixInstanceNumbers=false;
 			// trigger logic in default dcm4chee operations is last-first+1!=size 
 			// should we do this?? as it is dso not the image 
 //			if (instanceNos[instanceNos.length-1] - instanceNos[0] +1 != instanceNos.length)
 //				fixInstanceNumbers = true;
-			//order by instance numbers
-			int mininstance = instanceNos.length;
-			for (int i = 0; i < instanceNos.length; i++) {
-				for (int j = i; j < instanceNos.length; j++) {
-					int instance = instanceNos[i];
-					if (instance < mininstance) mininstance = instance;
-					double[] position = positions[i];
-					double sliceLocation = sliceLocations[i];
-					AttributeList alist = dicomAttributes[i];
-					//if instance numbers are incorrect trigger fixing it, do not throw error
-					// update instance numbers when there are more than one with the same number
-					// trigger logic in default dcm4chee operations is last-first+1!=size 
-					if (instanceNos[j] == instance  && j != i){
-						fixInstanceNumbers=true;
-						i=instanceNos.length-1;
-						break;
-//						throw new RuntimeException("Invalid source dicom, it has duplicate instances numbers: " + instance);
-					}
-					if (instanceNos[j] > instance) {
-						instanceNos[i] = instanceNos[j];
-						positions[i] = positions[j];
-						dicomAttributes[i] = dicomAttributes[j];
-						instanceNos[j] = instance;
-						positions[j] = position;
-						dicomAttributes[j] = alist;
-						sliceLocations[i] = sliceLocations[j];
-						sliceLocations[j] = sliceLocation;
-						
-					}
-				}
-			}
-			
-			if (fixInstanceNumbers) {
-				//order by slice location in descending order
-				for (int i = 0; i < instanceNos.length; i++) {
-					for (int j = i; j < instanceNos.length; j++) {
-						int instance = instanceNos[i];
-						double[] position = positions[i];
-						double sliceLocation = sliceLocations[i];
-						AttributeList alist = dicomAttributes[i];
-						
-						if (sliceLocations[j] <= sliceLocation) {
-							instanceNos[i] = instanceNos[j];
-							positions[i] = positions[j];
-							dicomAttributes[i] = dicomAttributes[j];
-							instanceNos[j] = instance;
-							positions[j] = position;
-							dicomAttributes[j] = alist;
-							sliceLocations[i] = sliceLocations[j];
-							sliceLocations[j] = sliceLocation;
-							
-						}
-					}
-				}
-				//go through the ordered list and fix instance numbers
-				for (int i = 0; i < instanceNos.length; i++) {
-					instanceNos[i] = i+1;
-				}
+			//order by instance numbers, in descending order
+			SliceOrdering ordering = SliceOrdering.byInstanceNumber(instanceNos);
+			int[] order = ordering.getReverseOrder();
+			int mininstance = Math.min(instanceNos.length, instanceNos[order[order.length - 1]]);
+			//if instance numbers are incorrect fix them, do not throw error
+			// update instance numbers when there are more than one with the same number
+			if (ordering.hasDuplicates()) {
+				log.info("Duplicate instance numbers in source dicom, ordering by slice location");
+				//order by slice location in ascending order, the instance numbers then go up from 1
+				order = SliceOrdering.byKey(sliceLocations).getOrder();
 				mininstance = 1;
-				
+			} else if (ordering.getGaps().length > 0) {
+				log.info("Missing instance numbers in source dicom after " + ordering.getGaps().length + " slices");
+			}
+			checkSliceGeometry(dicomAttributes, positions, hasPositions);
+
+			AttributeList[] orderedAttributes = new AttributeList[order.length];
+			double[][] orderedPositions = new double[order.length][];
+			double[] orderedSliceLocations = new double[order.length];
+			for (int i = 0; i < order.length; i++) {
+				orderedAttributes[i] = dicomAttributes[order[i]];
+				orderedPositions[i] = positions[order[i]];
+				orderedSliceLocations[i] = sliceLocations[order[i]];
 			}
+			System.arraycopy(orderedAttributes, 0, dicomAttributes, 0, order.length);
+			positions = orderedPositions;
+			sliceLocations = orderedSliceLocations;
 			return mininstance;
-		} finally {
-			IOUtils.closeQuietly(dicomInputStream);
 		}
 	}
 
+	/**
+	 * Warn about source images in the same plane, or with planes missing between them, from their distances along the
+	 * normal to the slices.
+	 */
+	private static void checkSliceGeometry(AttributeList[] sliceAttributes, double[][] positions, boolean hasPositions)
+	{
+		double[] normal = SliceOrdering.getNormal(Attribute.getDoubleValues(sliceAttributes[0],
+				TagFromName.ImageOrientationPatient));
+		if (normal == null || !hasPositions || positions.length < 2)
+			return;
+		SliceOrdering ordering = SliceOrdering.byDistanceAlongNormal(positions, normal);
+		if (ordering.hasDuplicates())
+			log.warning("Source dicom has " + ordering.getDuplicateCount() + " images in the same plane as another");
+		int[] gaps = ordering.getGaps();
+		if (gaps.length > 0)
+			log.warning("Source dicom has " + gaps.length + " gaps of more than " + SliceOrdering.GAP_FACTOR
+					+ " times the slice spacing of " + ordering.getSpacing() + "mm");
+	}
+
+	/**
+	 * Read the attributes of each slice used to order the slices and to reference them from the DSO.
+	 * <p>
+	 * The headers are read in parallel on {@link #getMaskDecodingPool()}, or on the calling thread if there is no pool,
+	 * up to the last of {@link #SLICE_TAGS}, and only those attributes are kept.
+	 * </p>
+	 * 
+	 * @param dicomFilePaths source DICOM files
+	 * @param firstAttributes header of the first file, already read
+	 * @return slice attributes, in the order of the files
+	 */
+	private AttributeList[] readSliceAttributes(final List<String> dicomFilePaths, AttributeList firstAttributes)
+			throws IOException, DicomException
+	{
+		AttributeList[] sliceAttributes = new AttributeList[dicomFilePaths.size()];
+		sliceAttributes[0] = selectSliceAttributes(firstAttributes);
+		if (maskDecodingPool == null) {
+			for (int i = 1; i < dicomFilePaths.size(); i++)
+				sliceAttributes[i] = readSliceAttributes(dicomFilePaths.get(i));
+			return sliceAttributes;
+		}
+		List<Callable<AttributeList>> readers = new ArrayList<Callable<AttributeList>>(dicomFilePaths.size());
+		for (int i = 1; i < dicomFilePaths.size(); i++) {
+			final String dicomFilePath = dicomFilePaths.get(i);
+			readers.add(new Callable<AttributeList>() {
+				@Override
+				public AttributeList call() throws IOException, DicomException
+				{
+					return readSliceAttributes(dicomFilePath);
+				}
+			});
+		}
+		List<Future<AttributeList>> results;
+		try {
+			results = maskDecodingPool.invokeAll(readers);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted reading the source headers");
+		}
+		for (int i = 0; i < results.size(); i++)
+			sliceAttributes[i + 1] = getResult(results.get(i), dicomFilePaths.get(i + 1));
+		return sliceAttributes;
+	}
+
+	private static AttributeList readSliceAttributes(String dicomFilePath) throws IOException, DicomException
+	{
+		return selectSliceAttributes(PixelMedUtils.readPartialAttributeListFromDicomFile(dicomFilePath, SLICE_TAGS));
+	}
+
+	private static AttributeList selectSliceAttributes(AttributeList attributeList) throws DicomException
+	{
+		AttributeList selected = new AttributeList();
+		for (AttributeTag tag : SLICE_TAGS) {
+			Attribute attribute = attributeList.get(tag);
+			if (attribute != null)
+				selected.put(attribute);
+		}
+		return selected;
+	}
+
+	/**
+	 * The attributes of the source images passed to the SegmentationObjectsFileWriter: those of the slices, with the
+	 * first completed by the header of the first source file, from which the writer takes the context of the DSO.
+	 */
+	private AttributeList[] getSourceAttributes() throws DicomException
+	{
+		if (contextAttributes == null || dicomAttributes.length == 0 || dicomAttributes[0] == null)
+			return dicomAttributes;
+		AttributeList[] sourceAttributes = dicomAttributes.clone();
+		AttributeList first = (AttributeList)contextAttributes.clone();
+		first.putAll(dicomAttributes[0]);
+		sourceAttributes[0] = first;
+		return sourceAttributes;
+	}
+
 	public static BufferedImage convertRGBAToIndexed(BufferedImage src) {
 		BufferedImage dest = new BufferedImage(src.getWidth(), src.getHeight(), BufferedImage.TYPE_BYTE_INDEXED);
 
@@ -526,224 +638,61 @@ public class TIFFMasksToDSOConverter
 	 */
 	private byte[] getPixelsFromMaskFiles(List<String> maskFilePaths, List<String> dicomFilePaths, boolean removeEmpty, String dsoUID) throws FileNotFoundException, IOException,
 	DicomException
+	{
+		return getPixelsFromMaskFiles(maskFilePaths, dicomFilePaths, removeEmpty, true, dsoUID);
+	}
+	
+	private byte[] getPixelsFromMaskFiles(List<String> maskFilePaths, List<String> dicomFilePaths, boolean removeEmpty) throws FileNotFoundException, IOException,
+	DicomException
+	{
+		return getPixelsFromMaskFiles(maskFilePaths, dicomFilePaths, removeEmpty, false, null);
+	}
+
+	private byte[] getPixelsFromMaskFiles(List<String> maskFilePaths, List<String> dicomFilePaths, boolean removeEmpty,
+			boolean setFirstFrame, String dsoUID) throws IOException, DicomException
 	{
 		Integer firstFrame=-1;
 		byte[] pixels = null;
+		int pixelsLength = 0;
 		List<Integer> emptyFileIndex = new ArrayList<Integer>();
-		for (int i = 0; i < maskFilePaths.size(); i++) {
-			File maskFile = new File(maskFilePaths.get(i));
-			BufferedImage maskImage = ImageIO.read(maskFile);
-			// BufferedImage bufferedImage = new BufferedImage(image.getWidth(), image.getHeight(),
-			// BufferedImage.TYPE_BYTE_BINARY);
-			byte[] new_frame = ((DataBufferByte)maskImage.getRaster().getDataBuffer()).getData();
-			byte[] pixel_data = new_frame;
-			long rgbLen = maskImage.getWidth()*maskImage.getHeight()*4;
-			long bwLen = maskImage.getWidth()*maskImage.getHeight()/8;
-			long greyLen = maskImage.getWidth()*maskImage.getHeight();
-			if (i == 0)
-			{
-				System.out.println("Expected length, RGB:" + rgbLen + " BW:" + bwLen + " Grey:" + greyLen 
-						+ " Actual tiff data len:" + new_frame.length);
-				log.info("Expected length, RGB:" + rgbLen + " BW:" + bwLen + " Grey:" + greyLen 
-						+ " Actual tiff data len:" + new_frame.length);
-			}
-			boolean nonzerodata = false;
-
-			// looks like 4 bytes/pixel, compress to 1 bit/pixel (else assume it is already 1 bit/pixel)
-			if (new_frame.length == rgbLen)
-			{
-				if (i%10 == 0) {
-					System.out.println("Compressing tiff mask from rgb, mask:" + i);
-					log.debug("Compressing tiff mask from rgb, mask:" + i);
-				}
-
-				int numpixels = new_frame.length/4;
-  				int numbytes = numpixels/8;		  				
-  				pixel_data = new byte[numbytes];	
-				for (int k = 0; k < numbytes; k++)
-				{
-					int index = k*8*4;
-					pixel_data[k] = 0;
-					for (int l = 0; l < 4*8; l=l+4)
-					{
-						if (new_frame[index + l] != 0)
-						{
-							int setBit =  pixel_data[k] + (1 << (l/4));
-							pixel_data[k] =(byte) setBit;
-							nonzerodata = true;
-						}
-					}
-					if (pixel_data[k] != 0)
-						log.info("maskfile" + i + ": " + k + " pixel:" + pixel_data[k] + " compress rgb");
-				}
-				 
-					
-					//				
-				
-			}
-			// ml if 
-			else if (new_frame.length == greyLen || maskImage.getType()== BufferedImage.TYPE_BYTE_INDEXED)
-			{
-				if (maskImage.getType()== BufferedImage.TYPE_BYTE_INDEXED) { //if not indexed old version should work
-					if (i%10 == 0) {
-						System.out.println("indexed tiff mask from rgb, mask:" + i);
-						log.debug("indexed tiff mask from rgb, mask:" + i);
-					}
-
-					
-					//				pixel_data = ((DataBufferByte)convertRGBAToIndexed(maskImage).getRaster().getDataBuffer()).getData();
-					int numpixels = new_frame.length;
-					pixel_data = new byte[numpixels];
-					log.info("maskfile data");
-					for (int k = 0; k < numpixels; k++)
-					{
-						pixel_data[k] = 0;
-						if (new_frame[k] != 0)
-						{
-							pixel_data[k] = new_frame[k];
-							nonzerodata = true;
-						}
-
-						//					byte red = (byte)((new_frame[index] * 8) / 256);
-						//					byte green = (byte)((new_frame[index+1] * 8) / 256);
-						//					byte blue = (byte)((new_frame[index+2] * 4) / 256);
-						//					pixel_data[k] =(byte) ((red << 5) | (green << 2) | blue);
-
-						//					for (int l = 0; l < 4; l=l+4)
-						//					{
-						//						if (new_frame[index + l] != 0)
-						//						{
-						//							int setBit =  pixel_data[k] + (1 << (l));
-						//							pixel_data[k] =(byte) setBit;
-						//							nonzerodata = true;
-						//						}
-						//					}
-						if (pixel_data[k] != 0)
-							log.info("maskfile" + i + ": " + k + " pixel:" + pixel_data[k] +" rgb " );
-					}
-
-				} else {
-					if (i%10 == 0) {
-						System.out.println("Compressing tiff mask from grey, mask:" + i);
-						log.debug("Compressing tiff mask from grey, mask:" + i);
-					}
-					int numpixels = new_frame.length;
-					int numbytes = numpixels/8;
-					pixel_data = new byte[numbytes];
-					for (int k = 0; k < numbytes; k++)
-					{
-						int index = k*8;
-						pixel_data[k] = 0;
-						for (int l = 0; l < 8; l++)
-						{
-							if (new_frame[index + l] != 0)
-							{
-								int setBit =  pixel_data[k] + (1 << l);
-								pixel_data[k] =(byte) setBit;
-								nonzerodata = true;
-							}
-						}
-						if (pixel_data[k] != 0)
-							log.info("maskfile" + i + ": " + k + " pixel:" + pixel_data[k]);
-					}
-				}
-
-			}
-			else //bw
-			{
-				if (i%10 == 0) {
-					System.out.println("Flipping odd bytes of bw tif, mask:" + i);
-					log.debug("Flipping odd bytes of bw tif, mask:" + i);
+		PackedMaskReader maskReader = new PackedMaskReader(maskFilePaths, maskDecodingPool, maskMemoryBudget);
+		try {
+			for (int i = 0; i < maskFilePaths.size(); i++) {
+				PackedMask mask = maskReader.next();
+				byte[] pixel_data = mask.pixels;
+				boolean nonzerodata = mask.nonzero;
+				log.info("maskfile" + i + ": " + maskFilePaths.get(i) + " frame_length:" + pixel_data.length + " nonzero data:" + nonzerodata);
+				if (!nonzerodata && removeEmpty) {
+					log.debug("Nodata - maskfile" + i + ": " + maskFilePaths.get(i) + " frame_length:" + pixel_data.length);
+					emptyFileIndex.add(i);
+					continue;
 				}
-				int numbytes = maskImage.getWidth()*maskImage.getHeight()/8;
-				pixel_data = new byte[numbytes];
-				for (int k = 0; k < numbytes; k++)
-				{
-					// Flip every odd byte. why on earth do we need to do this?
-					if (new_frame[k] != 0)
-						nonzerodata = true;
-					//flip if not indexed image (8 bit color)
-					if (k%2 != 0 && new_frame[k] != 0)
-					{
-						pixel_data[k] = 0;
-						if ((new_frame[k] & 1) == 1)
-						{
-							int setBit = pixel_data[k]+128;
-							pixel_data[k] =(byte) setBit;
-						}
-						if ((new_frame[k] & 2) == 2)
-						{
-							int setBit = pixel_data[k]+64;
-							pixel_data[k] =(byte) setBit;
-						}
-						if ((new_frame[k] & 4) == 4)
-						{
-							int setBit = pixel_data[k]+32;
-							pixel_data[k] =(byte) setBit;
-						}
-						if ((new_frame[k] & 8) == 8)
-						{
-							int setBit = pixel_data[k]+16;
-							pixel_data[k] =(byte) setBit;
-						}
-						if ((new_frame[k] & 16) == 16)
-						{
-							int setBit = pixel_data[k]+8;
-							pixel_data[k] =(byte) setBit;
-						}
-						if ((new_frame[k] & 32) == 32)
-						{
-							int setBit = pixel_data[k]+4;
-							pixel_data[k] =(byte) setBit;
-						}
-						if ((new_frame[k] & 64) == 64)
-						{
-							int setBit = pixel_data[k]+2;
-							pixel_data[k] =(byte) setBit;
-						}
-						if ((new_frame[k] & 128) == 128)
-						{
-							int setBit = pixel_data[k]+1;
-							pixel_data[k] =(byte) setBit;
-						}
-						if (new_frame[k] != 0)
-							System.out.println("Old byte:" + new_frame[k] + " New byte:" + pixel_data[k]);	
+				if (nonzerodata && setFirstFrame) {
+					Integer reverseNum=maskFilePaths.size()-i-1;
+					if (firstFrame==-1 || reverseNum< firstFrame) {
+						firstFrame=reverseNum;
+						log.info("setting firstframe:"+firstFrame);
 					}
-					else
-						pixel_data[k] = new_frame[k];
-					if (pixel_data[k] != 0)
-						log.info("maskfile bw-rgb" + i + ": " + k + " pixel:" + pixel_data[k]);
-				}
-			}
-			log.info("maskfile" + i + ": " + maskFilePaths.get(i) + " frame_length:" + pixel_data.length + " nonzero data:" + nonzerodata);
-			if (!nonzerodata && removeEmpty) {
-				log.debug("Nodata - maskfile" + i + ": " + maskFilePaths.get(i) + " frame_length:" + pixel_data.length);
-				emptyFileIndex.add(i);
-				continue;
-			}
-			if (nonzerodata) {
-				Integer reverseNum=maskFilePaths.size()-i-1;
-				if (firstFrame==-1 || reverseNum< firstFrame) {
-					firstFrame=reverseNum;
-					log.info("setting firstframe:"+firstFrame);
-					
 				}
-					
-			}
-			if (pixels == null) {
-				//pixels = new_frame.clone();
-				pixels = pixel_data;
-			} else {
-				byte[] temp = new byte[pixels.length + pixel_data.length];
-				System.arraycopy(pixels, 0, temp, 0, pixels.length);
-				System.arraycopy(pixel_data, 0, temp, pixels.length, pixel_data.length);
-				//pixels = temp.clone();
-				pixels = temp;
+				// Size the buffer for all the remaining frames once, and copy each frame into its slot
+				if (pixels == null)
+					pixels = new byte[pixel_data.length * (maskFilePaths.size() - i)];
+				else if (pixelsLength + pixel_data.length > pixels.length) // masks of differing sizes
+					pixels = Arrays.copyOf(pixels, pixelsLength + pixel_data.length * (maskFilePaths.size() - i));
+				System.arraycopy(pixel_data, 0, pixels, pixelsLength, pixel_data.length);
+				pixelsLength += pixel_data.length;
 			}
+		} finally {
+			maskReader.close();
+		}
+		// Drop the slots left over by the empty frames
+		if (pixels != null && pixelsLength < pixels.length)
+			pixels = Arrays.copyOf(pixels, pixelsLength);
+		if (setFirstFrame) {
+			//update the firstframe for this dso
+			log.info("first frame for dso:"+ dsoUID + " is "+firstFrame);
+			firstFrames.put(dsoUID, firstFrame);
 		}
-		//update the firstframe for this dso
-		log.info("first frame for dso:"+ dsoUID + " is "+firstFrame);
-		firstFrames.put(dsoUID, firstFrame);
 		for (int i = 0; i < emptyFileIndex.size(); i++)
 		{
 			int index = emptyFileIndex.get(i);
@@ -762,231 +711,163 @@ public class TIFFMasksToDSOConverter
 		log.info("Number of pixels:" + pixels.length + " dicoms:" + dicomFilePaths.size());	
 		return pixels;
 	}
-	
-	private byte[] getPixelsFromMaskFiles(List<String> maskFilePaths, List<String> dicomFilePaths, boolean removeEmpty) throws FileNotFoundException, IOException,
-	DicomException
+
+	/**
+	 * Read a mask file and pack it to the layout stored in the DSO.
+	 * 
+	 * @param maskFilePath TIFF mask
+	 * @param i index of the mask, for logging
+	 * @return packed frame
+	 * @throws IOException
+	 */
+	private static PackedMask packMask(String maskFilePath, int i) throws IOException
 	{
-		byte[] pixels = null;
-		List<Integer> emptyFileIndex = new ArrayList<Integer>();
-		for (int i = 0; i < maskFilePaths.size(); i++) {
-			File maskFile = new File(maskFilePaths.get(i));
-			BufferedImage maskImage = ImageIO.read(maskFile);
-			// BufferedImage bufferedImage = new BufferedImage(image.getWidth(), image.getHeight(),
-			// BufferedImage.TYPE_BYTE_BINARY);
-			byte[] new_frame = ((DataBufferByte)maskImage.getRaster().getDataBuffer()).getData();
-			byte[] pixel_data = new_frame;
-			long rgbLen = maskImage.getWidth()*maskImage.getHeight()*4;
-			long bwLen = maskImage.getWidth()*maskImage.getHeight()/8;
-			long greyLen = maskImage.getWidth()*maskImage.getHeight();
-			if (i == 0)
-			{
-				System.out.println("Expected length, RGB:" + rgbLen + " BW:" + bwLen + " Grey:" + greyLen 
-						+ " Actual tiff data len:" + new_frame.length);
-				log.info("Expected length, RGB:" + rgbLen + " BW:" + bwLen + " Grey:" + greyLen 
-						+ " Actual tiff data len:" + new_frame.length);
-			}
-			boolean nonzerodata = false;
+		File maskFile = new File(maskFilePath);
+		BufferedImage maskImage = ImageIO.read(maskFile);
+		byte[] new_frame = ((DataBufferByte)maskImage.getRaster().getDataBuffer()).getData();
+		long rgbLen = maskImage.getWidth()*maskImage.getHeight()*4;
+		long bwLen = maskImage.getWidth()*maskImage.getHeight()/8;
+		long greyLen = maskImage.getWidth()*maskImage.getHeight();
+		if (i == 0)
+		{
+			System.out.println("Expected length, RGB:" + rgbLen + " BW:" + bwLen + " Grey:" + greyLen 
+					+ " Actual tiff data len:" + new_frame.length);
+			log.info("Expected length, RGB:" + rgbLen + " BW:" + bwLen + " Grey:" + greyLen 
+					+ " Actual tiff data len:" + new_frame.length);
+		}
 
-			// looks like 4 bytes/pixel, compress to 1 bit/pixel (else assume it is already 1 bit/pixel)
-			if (new_frame.length == rgbLen)
-			{
-				if (i%10 == 0) {
-					System.out.println("Compressing tiff mask from rgb, mask:" + i);
-					log.debug("Compressing tiff mask from rgb, mask:" + i);
-				}
+		// RGB and grey masks are compressed to 1 bit/pixel, indexed (8 bit color) masks are kept as they are, and
+		// 1 bit/pixel masks have their odd bytes flipped
+		MaskPacker.Layout layout = MaskPacker.getLayout(maskImage);
+		if (i%10 == 0)
+			log.debug("Packing " + layout + " tiff mask:" + i);
+		MaskPacker.PackedFrame frame = MaskPacker.pack(maskImage, layout);
+		return new PackedMask(frame.getPixels(), frame.isNonEmpty(), new_frame.length);
+	}
 
-				int numpixels = new_frame.length/4;
-  				int numbytes = numpixels/8;		  				
-  				pixel_data = new byte[numbytes];	
-				for (int k = 0; k < numbytes; k++)
-				{
-					int index = k*8*4;
-					pixel_data[k] = 0;
-					for (int l = 0; l < 4*8; l=l+4)
-					{
-						if (new_frame[index + l] != 0)
-						{
-							int setBit =  pixel_data[k] + (1 << (l/4));
-							pixel_data[k] =(byte) setBit;
-							nonzerodata = true;
-						}
-					}
-					if (pixel_data[k] != 0)
-						log.info("maskfile" + i + ": " + k + " pixel:" + pixel_data[k] + " compress rgb");
-				}
-				 
-					
-					//				
-				
+	/**
+	 * Wait for the result of a task reading a file, rethrowing the exception it failed with.
+	 */
+	private static <T> T getResult(Future<T> future, String filePath) throws IOException, DicomException
+	{
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted reading " + filePath);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			// A ForkJoinPool wraps the checked exceptions of a callable in runtime exceptions
+			for (Throwable t = cause; t != null; t = t.getCause()) {
+				if (t instanceof IOException)
+					throw (IOException)t;
+				if (t instanceof DicomException)
+					throw (DicomException)t;
 			}
-			// ml if 
-			else if (new_frame.length == greyLen || maskImage.getType()== BufferedImage.TYPE_BYTE_INDEXED)
-			{
-				if (maskImage.getType()== BufferedImage.TYPE_BYTE_INDEXED) { //if not indexed old version should work
-					if (i%10 == 0) {
-						System.out.println("indexed tiff mask from rgb, mask:" + i);
-						log.debug("indexed tiff mask from rgb, mask:" + i);
-					}
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if (cause instanceof Error)
+				throw (Error)cause;
+			throw new IOException("Error reading " + filePath, cause);
+		}
+	}
 
-					
-					//				pixel_data = ((DataBufferByte)convertRGBAToIndexed(maskImage).getRaster().getDataBuffer()).getData();
-					int numpixels = new_frame.length;
-					pixel_data = new byte[numpixels];
-					log.info("maskfile data");
-					for (int k = 0; k < numpixels; k++)
-					{
-						pixel_data[k] = 0;
-						if (new_frame[k] != 0)
-						{
-							pixel_data[k] = new_frame[k];
-							nonzerodata = true;
-						}
+	private static ExecutorService createPool(int threads)
+	{
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ConverterThreadFactory());
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
 
-						//					byte red = (byte)((new_frame[index] * 8) / 256);
-						//					byte green = (byte)((new_frame[index+1] * 8) / 256);
-						//					byte blue = (byte)((new_frame[index+2] * 4) / 256);
-						//					pixel_data[k] =(byte) ((red << 5) | (green << 2) | blue);
+	private static class ConverterThreadFactory implements ThreadFactory
+	{
+		private final AtomicInteger threadNumber = new AtomicInteger();
 
-						//					for (int l = 0; l < 4; l=l+4)
-						//					{
-						//						if (new_frame[index + l] != 0)
-						//						{
-						//							int setBit =  pixel_data[k] + (1 << (l));
-						//							pixel_data[k] =(byte) setBit;
-						//							nonzerodata = true;
-						//						}
-						//					}
-						if (pixel_data[k] != 0)
-							log.info("maskfile" + i + ": " + k + " pixel:" + pixel_data[k] +" rgb " );
-					}
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "TIFFMasksToDSOConverter-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
 
-				} else {
-					if (i%10 == 0) {
-						System.out.println("Compressing tiff mask from grey, mask:" + i);
-						log.debug("Compressing tiff mask from grey, mask:" + i);
-					}
-					int numpixels = new_frame.length;
-					int numbytes = numpixels/8;
-					pixel_data = new byte[numbytes];
-					for (int k = 0; k < numbytes; k++)
-					{
-						int index = k*8;
-						pixel_data[k] = 0;
-						for (int l = 0; l < 8; l++)
-						{
-							if (new_frame[index + l] != 0)
-							{
-								int setBit =  pixel_data[k] + (1 << l);
-								pixel_data[k] =(byte) setBit;
-								nonzerodata = true;
-							}
-						}
-						if (pixel_data[k] != 0)
-							log.info("maskfile" + i + ": " + k + " pixel:" + pixel_data[k]);
-					}
-				}
+	/**
+	 * A mask frame as it is stored in the DSO, and whether it has any pixel set.
+	 */
+	private static class PackedMask
+	{
+		final byte[] pixels;
+		final boolean nonzero;
+		final int decodedLength;
 
-			}
-			else //bw
-			{
-				if (i%10 == 0) {
-					System.out.println("Flipping odd bytes of bw tif, mask:" + i);
-					log.debug("Flipping odd bytes of bw tif, mask:" + i);
-				}
-				int numbytes = maskImage.getWidth()*maskImage.getHeight()/8;
-				pixel_data = new byte[numbytes];
-				for (int k = 0; k < numbytes; k++)
-				{
-					// Flip every odd byte. why on earth do we need to do this?
-					if (new_frame[k] != 0)
-						nonzerodata = true;
-					//flip if not indexed image (8 bit color)
-					if (k%2 != 0 && new_frame[k] != 0)
-					{
-						pixel_data[k] = 0;
-						if ((new_frame[k] & 1) == 1)
-						{
-							int setBit = pixel_data[k]+128;
-							pixel_data[k] =(byte) setBit;
-						}
-						if ((new_frame[k] & 2) == 2)
-						{
-							int setBit = pixel_data[k]+64;
-							pixel_data[k] =(byte) setBit;
-						}
-						if ((new_frame[k] & 4) == 4)
-						{
-							int setBit = pixel_data[k]+32;
-							pixel_data[k] =(byte) setBit;
-						}
-						if ((new_frame[k] & 8) == 8)
-						{
-							int setBit = pixel_data[k]+16;
-							pixel_data[k] =(byte) setBit;
-						}
-						if ((new_frame[k] & 16) == 16)
-						{
-							int setBit = pixel_data[k]+8;
-							pixel_data[k] =(byte) setBit;
-						}
-						if ((new_frame[k] & 32) == 32)
-						{
-							int setBit = pixel_data[k]+4;
-							pixel_data[k] =(byte) setBit;
-						}
-						if ((new_frame[k] & 64) == 64)
-						{
-							int setBit = pixel_data[k]+2;
-							pixel_data[k] =(byte) setBit;
-						}
-						if ((new_frame[k] & 128) == 128)
-						{
-							int setBit = pixel_data[k]+1;
-							pixel_data[k] =(byte) setBit;
-						}
-						if (new_frame[k] != 0)
-							System.out.println("Old byte:" + new_frame[k] + " New byte:" + pixel_data[k]);	
-					}
-					else
-						pixel_data[k] = new_frame[k];
-					if (pixel_data[k] != 0)
-						log.info("maskfile bw-rgb" + i + ": " + k + " pixel:" + pixel_data[k]);
+		PackedMask(byte[] pixels, boolean nonzero, int decodedLength)
+		{
+			this.pixels = pixels;
+			this.nonzero = nonzero;
+			this.decodedLength = decodedLength;
+		}
+	}
+
+	/**
+	 * Returns the packed masks in order, decoding the masks ahead of the caller on a pool when one is given.
+	 * <p>
+	 * The first mask is decoded by the caller's thread and its decoded and packed sizes are used to size the window of
+	 * masks decoded ahead, so that the frames in flight stay within the memory budget.
+	 * </p>
+	 */
+	private static class PackedMaskReader
+	{
+		private final List<String> maskFilePaths;
+		private final ExecutorService pool;
+		private final long memoryBudget;
+		private final Deque<Future<PackedMask>> pending = new ArrayDeque<Future<PackedMask>>();
+		private int window = 1;
+		private int next = 0; // index of the next mask to return
+		private int submitted = 0; // index of the next mask to submit
+
+		PackedMaskReader(List<String> maskFilePaths, ExecutorService pool, long memoryBudget)
+		{
+			this.maskFilePaths = maskFilePaths;
+			this.pool = maskFilePaths.size() > 1 ? pool : null;
+			this.memoryBudget = memoryBudget;
+		}
+
+		PackedMask next() throws IOException, DicomException
+		{
+			int i = next++;
+			if (pool == null || i == 0) {
+				PackedMask mask = packMask(maskFilePaths.get(i), i);
+				if (pool != null) {
+					long frameBytes = Math.max(1, mask.decodedLength + mask.pixels.length);
+					window = (int)Math.max(1, Math.min(maskFilePaths.size(), memoryBudget / frameBytes));
+					submitted = 1;
 				}
+				return mask;
 			}
-			log.info("maskfile" + i + ": " + maskFilePaths.get(i) + " frame_length:" + pixel_data.length + " nonzero data:" + nonzerodata);
-			if (!nonzerodata && removeEmpty) {
-				log.debug("Nodata - maskfile" + i + ": " + maskFilePaths.get(i) + " frame_length:" + pixel_data.length);
-				emptyFileIndex.add(i);
-				continue;
-			}
-			if (pixels == null) {
-				//pixels = new_frame.clone();
-				pixels = pixel_data;
-			} else {
-				byte[] temp = new byte[pixels.length + pixel_data.length];
-				System.arraycopy(pixels, 0, temp, 0, pixels.length);
-				System.arraycopy(pixel_data, 0, temp, pixels.length, pixel_data.length);
-				//pixels = temp.clone();
-				pixels = temp;
-			}
+			while (submitted < maskFilePaths.size() && submitted - i < window)
+				pending.add(submit(submitted++));
+			return getResult(pending.remove(), maskFilePaths.get(i));
 		}
-		for (int i = 0; i < emptyFileIndex.size(); i++)
+
+		void close()
 		{
-			int index = emptyFileIndex.get(i);
-			log.info("Removing dicom " + (dicomAttributes.length - index -1));
-			dicomFilePaths.remove(dicomAttributes.length - index -1);
-			dicomAttributes[index] = null;
+			for (Future<PackedMask> future : pending)
+				future.cancel(false);
+			pending.clear();
+		}
+
+		private Future<PackedMask> submit(final int i)
+		{
+			return pool.submit(new Callable<PackedMask>() {
+				@Override
+				public PackedMask call() throws IOException
+				{
+					return packMask(maskFilePaths.get(i), i);
+				}
+			});
 		}
-		//		for (int i = 0; i < emptyFileIndex.size(); i++)
-		//		{
-		//			int index = emptyFileIndex.get(i);
-		//			log.info("Removing dicom " + (maskFilePaths.size() - index - 1));
-		//			dicomFilePaths.remove(maskFilePaths.size() - index - 1); // DicomFiles are in reverse order for!!!
-		//		}
-		if (pixels == null)
-			throw new RuntimeException("The DSO has all empty frames");
-		log.info("Number of pixels:" + pixels.length + " dicoms:" + dicomFilePaths.size());	
-		return pixels;
 	}
 
 	/**